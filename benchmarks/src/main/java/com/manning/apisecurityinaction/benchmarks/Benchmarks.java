@@ -0,0 +1,50 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import spark.Request;
+
+final class Benchmarks {
+    static final String USER = "bench";
+
+    private Benchmarks() {
+    }
+
+    static Database createDatabase() throws IOException {
+        var url = "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        var database = Database.forDataSource(JdbcConnectionPool.create(url, "natter", "password"));
+        try (InputStream schema = Benchmarks.class.getResourceAsStream("/schema.sql")) {
+            database.update(new String(schema.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        database.update("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)", USER, "unused");
+        return database;
+    }
+
+    static SecretKeySpec randomKey(SecureRandom rng, String algorithm) {
+        var bytes = new byte[32];
+        rng.nextBytes(bytes);
+        return new SecretKeySpec(bytes, algorithm);
+    }
+
+    // enough of a request for the stores that inspect it (MacaroonStore)
+    static final class GetRequest extends Request {
+        @Override
+        public String requestMethod() {
+            return "GET";
+        }
+
+        @Override
+        public String queryParams(String queryParam) {
+            return null;
+        }
+    }
+}
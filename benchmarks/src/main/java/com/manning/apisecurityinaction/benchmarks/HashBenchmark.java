@@ -0,0 +1,51 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.manning.apisecurityinaction.token.Base64Url;
+import com.manning.apisecurityinaction.token.Util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+    private String tokenId;
+    private byte[] tokenBytes;
+
+    @Setup
+    public void setup() {
+        tokenBytes = new byte[20];
+        new SecureRandom().nextBytes(tokenBytes);
+        tokenId = Base64Url.encode(tokenBytes);
+    }
+
+    @Benchmark
+    public String sha256() {
+        return Util.hash(tokenId);
+    }
+
+    @Benchmark
+    public String base64UrlEncode() {
+        return Base64Url.encode(tokenBytes);
+    }
+
+    @Benchmark
+    public byte[] base64UrlDecode() {
+        return Base64Url.decode(tokenId);
+    }
+}
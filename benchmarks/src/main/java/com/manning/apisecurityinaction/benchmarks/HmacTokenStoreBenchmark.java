@@ -0,0 +1,100 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.manning.apisecurityinaction.token.AuthenticatedTokenStore;
+import com.manning.apisecurityinaction.token.Base64Url;
+import com.manning.apisecurityinaction.token.HmacTokenStore;
+import com.manning.apisecurityinaction.token.TokenStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spark.Request;
+
+/**
+ * Measures the MAC layer on its own by wrapping a pass-through store. legacyRead reproduces the per-call
+ * Mac.getInstance/substring/decode path that HmacTokenStore used before MacEngine, for comparison with
+ * {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HmacTokenStoreBenchmark {
+    private SecretKeySpec macKey;
+    private AuthenticatedTokenStore<String> tokenStore;
+    private String rawTokenId;
+    private String tokenId;
+
+    @Setup
+    public void setup() {
+        var rng = new SecureRandom();
+        var keyBytes = new byte[32];
+        rng.nextBytes(keyBytes);
+        macKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+        tokenStore = HmacTokenStore.wrap(new PassThroughStore(), macKey);
+
+        var idBytes = new byte[20];
+        rng.nextBytes(idBytes);
+        rawTokenId = Base64Url.encode(idBytes);
+        tokenId = tokenStore.create(null, rawTokenId);
+    }
+
+    @Benchmark
+    public String create() {
+        return tokenStore.create(null, rawTokenId);
+    }
+
+    @Benchmark
+    public Optional<String> read() {
+        return tokenStore.read(null, tokenId);
+    }
+
+    @Benchmark
+    public Optional<String> legacyRead() throws Exception {
+        var index = tokenId.lastIndexOf('.');
+        var realTokenId = tokenId.substring(0, index);
+        var provided = Base64Url.decode(tokenId.substring(index + 1));
+        var mac = Mac.getInstance(macKey.getAlgorithm());
+        mac.init(macKey);
+        var computed = mac.doFinal(realTokenId.getBytes(StandardCharsets.UTF_8));
+        if (!MessageDigest.isEqual(provided, computed)) {
+            return Optional.empty();
+        }
+        return Optional.of(realTokenId);
+    }
+
+    private static final class PassThroughStore implements TokenStore<String> {
+        @Override
+        public String create(Request request, String token) {
+            return token;
+        }
+
+        @Override
+        public Optional<String> read(Request request, String tokenId) {
+            return Optional.of(tokenId);
+        }
+
+        @Override
+        public void revoke(Request request, String tokenId) {
+        }
+    }
+}
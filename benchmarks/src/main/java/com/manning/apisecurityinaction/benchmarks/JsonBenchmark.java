@@ -0,0 +1,151 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.manning.apisecurityinaction.audit.AuditEvent;
+import com.manning.apisecurityinaction.controller.SpaceController;
+import com.manning.apisecurityinaction.json.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.text.MessageFormat.format;
+
+/**
+ * Compares the org.json response path (build a JSONObject, render a String, encode it) with JsonWriter for the
+ * response shapes the API returns. Run with {@code -prof gc} to compare allocation per operation. Setup fails if
+ * the two paths do not produce identical bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    private static final JsonWriter.Shape AUDIT_RECORD = new JsonWriter.Shape("id", "method", "path", "user",
+            "status", "time");
+
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(64 * 1024);
+    private SpaceController.Message message;
+    private List<AuditEvent> auditLog;
+    private List<URI> uris;
+
+    @Setup
+    public void setup() throws IOException {
+        message = new SpaceController.Message(1234, 56789, "demo", Instant.now(),
+                "Some \"quoted\" text with </script> and non-ASCII: café   😀");
+        auditLog = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            auditLog.add(new AuditEvent((long) i, "GET", "/spaces/1/messages/" + i, i % 3 == 0 ? null : "demo",
+                    i % 2 == 0 ? null : 200, Instant.now()));
+        }
+        uris = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            uris.add(URI.create("https://localhost:4567/spaces/1/messages/" + i + "?access_token=abcdefghijklmnop"));
+        }
+
+        check("message", this::legacyMessage, this::message);
+        check("audit log", this::legacyAuditLog, this::auditLog);
+        check("uri list", this::legacyUriList, this::uriList);
+    }
+
+    @Benchmark
+    public int legacyMessage() {
+        sink.reset();
+        var json = new JSONObject().put("uri", format("/spaces/{0}/messages/{1}", message.spaceId(), message.msgId()))
+                .put("author", message.author()).put("time", message.time().toString())
+                .put("message", message.message());
+        sink.writeBytes(json.toString().getBytes(StandardCharsets.UTF_8));
+        return sink.size();
+    }
+
+    @Benchmark
+    public int message() throws IOException {
+        sink.reset();
+        try (var out = new JsonWriter(sink)) {
+            message.writeTo(out);
+        }
+        return sink.size();
+    }
+
+    @Benchmark
+    public int legacyAuditLog() {
+        sink.reset();
+        var logs = new ArrayList<JSONObject>(auditLog.size());
+        for (var event : auditLog) {
+            logs.add(new JSONObject().put("id", event.auditId()).put("method", event.method())
+                    .put("path", event.path()).put("user", event.userId()).put("status", event.status())
+                    .put("time", event.time()));
+        }
+        sink.writeBytes(new JSONArray(logs).toString().getBytes(StandardCharsets.UTF_8));
+        return sink.size();
+    }
+
+    @Benchmark
+    public int auditLog() throws IOException {
+        sink.reset();
+        try (var out = new JsonWriter(sink)) {
+            out.write('[');
+            for (int i = 0; i < auditLog.size(); ++i) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                var event = auditLog.get(i);
+                out.object(AUDIT_RECORD, event.auditId(), event.method(), event.path(), event.userId(),
+                        event.status(), event.time());
+            }
+            out.write(']');
+        }
+        return sink.size();
+    }
+
+    @Benchmark
+    public int legacyUriList() {
+        sink.reset();
+        sink.writeBytes(new JSONArray(uris).toString().getBytes(StandardCharsets.UTF_8));
+        return sink.size();
+    }
+
+    @Benchmark
+    public int uriList() throws IOException {
+        sink.reset();
+        try (var out = new JsonWriter(sink)) {
+            out.array(uris);
+        }
+        return sink.size();
+    }
+
+    private void check(String name, Output legacy, Output current) throws IOException {
+        legacy.write();
+        var expected = sink.toByteArray();
+        current.write();
+        if (!Arrays.equals(expected, sink.toByteArray())) {
+            throw new IllegalStateException(name + " output differs:\n" + new String(expected, StandardCharsets.UTF_8)
+                    + "\n" + sink.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Output {
+        int write() throws IOException;
+    }
+}
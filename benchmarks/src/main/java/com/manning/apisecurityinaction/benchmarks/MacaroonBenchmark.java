@@ -0,0 +1,75 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.github.nitram509.jmacaroons.MacaroonsBuilder;
+import com.manning.apisecurityinaction.controller.Permission;
+import com.manning.apisecurityinaction.token.Capability;
+import com.manning.apisecurityinaction.token.CapabilityStore;
+import com.manning.apisecurityinaction.token.MacaroonStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spark.Request;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MacaroonBenchmark {
+    @Param({ "0", "5", "20" })
+    public int caveats;
+
+    private final Request request = new Benchmarks.GetRequest();
+    private MacaroonStore<Capability> macaroonStore;
+    private MacaroonStore<Capability> uncachedStore;
+    private String tokenId;
+
+    @Setup
+    public void setup() throws Exception {
+        var rng = new SecureRandom();
+        var capabilityStore = new CapabilityStore(Benchmarks.createDatabase(), rng);
+        var macKey = Benchmarks.randomKey(rng, "HmacSHA256");
+        macaroonStore = new MacaroonStore<>(capabilityStore, macKey);
+        // a zero-sized cache verifies the full HMAC chain on every read, as before the cache was added
+        uncachedStore = new MacaroonStore<>(capabilityStore, macKey, 0, Duration.ofMinutes(10));
+        var macaroon = macaroonStore.create(request,
+                new Capability("/spaces/1/messages", EnumSet.of(Permission.Read)));
+
+        // the same mix of caveats CaveatAppender is used to add, all satisfied by a GET request
+        var builder = new MacaroonsBuilder(MacaroonsBuilder.deserialize(macaroon));
+        var expiry = Instant.now().plus(1, ChronoUnit.DAYS);
+        for (int i = 0; i < caveats; ++i) {
+            builder.add_first_party_caveat(i % 2 == 0 ? "time < " + expiry : "method = GET");
+        }
+        tokenId = builder.getMacaroon().serialize();
+    }
+
+    @Benchmark
+    public Optional<Capability> verify() {
+        return macaroonStore.read(request, tokenId);
+    }
+
+    @Benchmark
+    public Optional<Capability> verifyUncached() {
+        return uncachedStore.read(request, tokenId);
+    }
+}
@@ -0,0 +1,109 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dalesbred.Database;
+
+/**
+ * Loads a synthetic dataset into H2 and checks that each hot query is answered from an index. Runs in the
+ * verify phase of this project, so a regression to a table scan fails the build.
+ */
+public final class QueryPlanCheck {
+    private static final int SPACES = 50;
+    private static final int MESSAGES_PER_SPACE = 4_000;
+    private static final int AUDIT_ROWS = 100_000;
+    private static final int TOKENS = 50_000;
+
+    private final Database database;
+    private final List<String> failures = new ArrayList<>();
+
+    private QueryPlanCheck(Database database) {
+        this.database = database;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var check = new QueryPlanCheck(Benchmarks.createDatabase());
+        check.seed();
+        check.run();
+        if (!check.failures.isEmpty()) {
+            throw new IllegalStateException(String.join("\n\n", check.failures));
+        }
+        System.out.println("All query plans use the expected indexes");
+    }
+
+    private void run() {
+        var now = Timestamp.from(Instant.now());
+        var hash = new byte[32];
+
+        expectIndex("MSG_SPACE_TIME_IDX", "SELECT msg_time, msg_id FROM messages WHERE space_id = ? AND msg_time >= ? "
+                + "AND (msg_time > ? OR (msg_time = ? AND msg_id > ?)) ORDER BY msg_time, msg_id LIMIT ?",
+                1, now, now, now, 0, 100);
+        expectIndex("PRIMARY_KEY", "SELECT space_id, msg_id, author, msg_time, msg_text FROM messages "
+                + "WHERE msg_id = ? AND space_id = ?", 1, 1);
+        expectIndex("AUDIT_TIME_IDX", "SELECT * FROM audit_log WHERE audit_time >= ? LIMIT ?", now, 20);
+        expectIndex("PRIMARY_KEY", "SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?", hash);
+        expectIndex("EXPIRED_TOKEN_IDX", "SELECT expiry, token_id FROM tokens WHERE expiry < ? AND expiry >= ? AND "
+                + "(expiry > ? OR (expiry = ? AND token_id > ?)) ORDER BY expiry, token_id LIMIT ?", now, now, now, now,
+                hash, 500);
+        expectIndex("PRIMARY_KEY", "SELECT path, r, w, d, expiry FROM caps WHERE cap_id = ?", hash);
+        expectIndex("EXPIRED_CAP_IDX", "SELECT expiry, cap_id FROM caps WHERE expiry < ? AND expiry >= ? AND "
+                + "(expiry > ? OR (expiry = ? AND cap_id > ?)) ORDER BY expiry, cap_id LIMIT ?", now, now, now, now,
+                hash, 500);
+        expectIndex("CAP_PATH_IDX", "DELETE FROM caps WHERE path = ?", "/spaces/1/messages/1");
+        expectIndex("CAP_PATH_IDX", "DELETE FROM caps WHERE path >= ? AND path < ?", "/spaces/1/messages/1/",
+                "/spaces/1/messages/10");
+        expectIndex("CAP_PATH_IDX", "SELECT cap_id, path FROM caps WHERE path >= ? AND (path > ? OR (path = ? AND "
+                + "cap_id > ?)) ORDER BY path, cap_id LIMIT ?", "/spaces/1", "/spaces/1", "/spaces/1", hash, 500);
+    }
+
+    private void expectIndex(String index, String sql, Object... args) {
+        var plan = database.findUnique(String.class, "EXPLAIN " + sql, args);
+        if (plan.contains(".tableScan") || !plan.contains(index)) {
+            failures.add("Expected " + index + " for: " + sql + "\n" + plan);
+        }
+    }
+
+    private void seed() throws Exception {
+        var now = Instant.now();
+        var sha256 = MessageDigest.getInstance("SHA-256");
+
+        var spaces = new ArrayList<List<?>>();
+        var messages = new ArrayList<List<?>>();
+        for (int space = 1; space <= SPACES; ++space) {
+            spaces.add(List.of(space, "space" + space, Benchmarks.USER));
+            for (int i = 0; i < MESSAGES_PER_SPACE; ++i) {
+                var msgId = space * MESSAGES_PER_SPACE + i;
+                messages.add(List.of(space, msgId, Benchmarks.USER,
+                        Timestamp.from(now.minus(i, ChronoUnit.MINUTES)), "message " + msgId));
+            }
+        }
+        database.updateBatch("INSERT INTO spaces(space_id, name, owner) VALUES(?, ?, ?)", spaces);
+        database.updateBatch(
+                "INSERT INTO messages(space_id, msg_id, author, msg_time, msg_text) VALUES(?, ?, ?, ?, ?)", messages);
+
+        var audit = new ArrayList<List<?>>();
+        for (int i = 0; i < AUDIT_ROWS; ++i) {
+            audit.add(List.of(i, "GET", "/spaces/1/messages", 200, Timestamp.from(now.minus(i, ChronoUnit.SECONDS))));
+        }
+        database.updateBatch("INSERT INTO audit_log(audit_id, method, path, status, audit_time) VALUES(?, ?, ?, ?, ?)",
+                audit);
+
+        var tokens = new ArrayList<List<?>>();
+        var caps = new ArrayList<List<?>>();
+        for (int i = 0; i < TOKENS; ++i) {
+            var id = sha256.digest(Integer.toString(i).getBytes());
+            tokens.add(List.of(id, Benchmarks.USER, Timestamp.from(now.plus(i, ChronoUnit.SECONDS)), "{}"));
+            caps.add(List.of(id, "/spaces/1/messages/" + i, true, false, false,
+                    Timestamp.from(now.plus(i, ChronoUnit.SECONDS))));
+        }
+        database.updateBatch("INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES(?, ?, ?, ?)", tokens);
+        database.updateBatch("INSERT INTO caps(cap_id, path, r, w, d, expiry) VALUES(?, ?, ?, ?, ?, ?)", caps);
+
+        database.update("ANALYZE");
+    }
+}
@@ -0,0 +1,115 @@
+package com.manning.apisecurityinaction.benchmarks;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.manning.apisecurityinaction.controller.Permission;
+import com.manning.apisecurityinaction.token.AuthnToken;
+import com.manning.apisecurityinaction.token.AuthnTokenStore;
+import com.manning.apisecurityinaction.token.CachingAuthnTokenStore;
+import com.manning.apisecurityinaction.token.Capability;
+import com.manning.apisecurityinaction.token.CapabilityStore;
+import com.manning.apisecurityinaction.token.EncryptedTokenStore;
+import com.manning.apisecurityinaction.token.HmacTokenStore;
+import com.manning.apisecurityinaction.token.JsonTokenStore;
+import com.manning.apisecurityinaction.token.MacaroonStore;
+import com.manning.apisecurityinaction.token.RevocationList;
+import com.manning.apisecurityinaction.token.StatelessCapabilityStore;
+import com.manning.apisecurityinaction.token.TokenStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spark.Request;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenStoreBenchmark {
+    @Param({ "hmac-caps", "macaroon-caps", "hmac-stateless-caps", "hmac-authn", "cached-hmac-authn", "sealed-authn" })
+    public String store;
+
+    private final Request request = new Benchmarks.GetRequest();
+    private TokenStore<Object> tokenStore;
+    private Object token;
+    private String tokenId;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        var rng = new SecureRandom();
+        var macKey = Benchmarks.randomKey(rng, "HmacSHA256");
+        var database = Benchmarks.createDatabase();
+
+        var capability = new Capability("/spaces/1/messages/1", EnumSet.of(Permission.Read));
+        var authnToken = new AuthnToken(Instant.now().plus(10, ChronoUnit.MINUTES), Benchmarks.USER);
+        TokenStore<?> selected;
+        switch (store) {
+        case "hmac-caps":
+            selected = HmacTokenStore.wrap(new CapabilityStore(database, rng), macKey);
+            token = capability;
+            break;
+        case "macaroon-caps":
+            selected = new MacaroonStore<>(new CapabilityStore(database, rng), macKey);
+            token = capability;
+            break;
+        case "hmac-stateless-caps":
+            selected = HmacTokenStore.wrap(
+                    new StatelessCapabilityStore(rng, Duration.ofDays(7), new RevocationList()), macKey);
+            token = capability;
+            break;
+        case "hmac-authn":
+            selected = HmacTokenStore.wrap(new AuthnTokenStore(database, rng), macKey);
+            token = authnToken;
+            break;
+        case "cached-hmac-authn":
+            selected = new CachingAuthnTokenStore(HmacTokenStore.wrap(new AuthnTokenStore(database, rng), macKey),
+                    10_000, Duration.ofSeconds(30), Duration.ofSeconds(10));
+            token = authnToken;
+            break;
+        case "sealed-authn":
+            selected = EncryptedTokenStore.wrap(new JsonTokenStore(rng, new RevocationList()),
+                    Benchmarks.randomKey(rng, "AES"));
+            token = authnToken;
+            break;
+        default:
+            throw new IllegalArgumentException(store);
+        }
+        tokenStore = (TokenStore<Object>) selected;
+        tokenId = tokenStore.create(request, token);
+    }
+
+    @Benchmark
+    public String create() {
+        return tokenStore.create(request, token);
+    }
+
+    @Benchmark
+    public Optional<Object> read() {
+        return tokenStore.read(request, tokenId);
+    }
+
+    @Benchmark
+    public String createAndRevoke() {
+        var id = tokenStore.create(request, token);
+        tokenStore.revoke(request, id);
+        return id;
+    }
+}
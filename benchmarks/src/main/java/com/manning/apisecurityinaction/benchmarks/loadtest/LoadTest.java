@@ -0,0 +1,211 @@
+package com.manning.apisecurityinaction.benchmarks.loadtest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * End-to-end load generator for the full Spark filter chain. Boots Main in a child JVM, seeds users, spaces
+ * and messages, then replays a weighted mix of workloads in closed-loop (fixed concurrency) or open-loop
+ * (constant arrival rate) mode and reports per-route latency percentiles and throughput.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.manning.apisecurityinaction.benchmarks.loadtest.LoadTest \
+ *     mode=open rate=500 duration=60 mix=login:5,post:20,list:25,read:45,delete:5
+ * </pre>
+ *
+ * Options (defaults in brackets): mode [closed], threads [32] for closed-loop, rate [200] requests/second
+ * for open-loop, maxInFlight [10000], warmup [10] and duration [60] seconds, users [20], spaces [10],
+ * messages [1000], mix, out (JSON report path) and jvmArgs (space-separated, passed to the server JVM).
+ * Environment variables such as AUTHN_TOKENS or CAPABILITY_TOKENS are passed through to the server;
+ * RATE_LIMIT_SCALE defaults to 1000 so that rate limiting is exercised without capping throughput.
+ */
+public final class LoadTest {
+    private static final Map<String, Workload> MIX_NAMES = Map.of("login", Workload.LOGIN, "post",
+            Workload.POST_MESSAGE, "list", Workload.LIST_MESSAGES, "read", Workload.READ_MESSAGE, "delete",
+            Workload.DELETE_MESSAGE);
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private final NatterClient client;
+    private final Workload[] mix;
+    private final Map<Workload, ConcurrentHistogram> histograms = new EnumMap<>(Workload.class);
+    private final AtomicLongArray errors = new AtomicLongArray(Workload.values().length);
+    private final AtomicLongArray rejected = new AtomicLongArray(Workload.values().length);
+
+    private LoadTest(NatterClient client, Workload[] mix) {
+        this.client = client;
+        this.mix = mix;
+        reset();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            var parts = arg.split("=", 2);
+            options.put(parts[0], parts.length == 2 ? parts[1] : "true");
+        }
+        var mode = options.getOrDefault("mode", "closed");
+        var warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        var duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "60")));
+        var jvmArgs = options.containsKey("jvmArgs") ? List.of(options.get("jvmArgs").split(" ")) : List.<String>of();
+
+        try (var server = NatterServer.start(jvmArgs, Map.of())) {
+            System.out.println("Server pid " + server.pid() + " listening on " + server.baseUri() + ", log "
+                    + server.log());
+            var client = new NatterClient(server.baseUri());
+            client.seed(Integer.parseInt(options.getOrDefault("users", "20")),
+                    Integer.parseInt(options.getOrDefault("spaces", "10")),
+                    Integer.parseInt(options.getOrDefault("messages", "1000")));
+
+            var test = new LoadTest(client,
+                    parseMix(options.getOrDefault("mix", "login:5,post:20,list:25,read:45,delete:5")));
+            if (mode.equals("open")) {
+                var rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+                var maxInFlight = Integer.parseInt(options.getOrDefault("maxInFlight", "10000"));
+                test.runOpenLoop(rate, maxInFlight, warmup);
+                test.reset();
+                test.runOpenLoop(rate, maxInFlight, duration);
+            } else {
+                var threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+                test.runClosedLoop(threads, warmup);
+                test.reset();
+                test.runClosedLoop(threads, duration);
+            }
+
+            var report = test.report(duration);
+            System.out.println(report.toString(2));
+            if (options.containsKey("out")) {
+                Files.writeString(Path.of(options.get("out")), report.toString(2));
+            }
+        }
+    }
+
+    private static Workload[] parseMix(String spec) {
+        var mix = new ArrayList<Workload>();
+        for (var entry : spec.split(",")) {
+            var parts = entry.split(":");
+            var workload = MIX_NAMES.get(parts[0]);
+            if (workload == null) {
+                throw new IllegalArgumentException("unknown workload " + parts[0]);
+            }
+            for (int i = 0; i < Integer.parseInt(parts[1]); ++i) {
+                mix.add(workload);
+            }
+        }
+        return mix.toArray(new Workload[0]);
+    }
+
+    private void reset() {
+        for (var workload : Workload.values()) {
+            histograms.put(workload, new ConcurrentHistogram(MAX_LATENCY_MICROS, 3));
+            errors.set(workload.ordinal(), 0);
+            rejected.set(workload.ordinal(), 0);
+        }
+    }
+
+    private Workload nextWorkload() {
+        return mix[ThreadLocalRandom.current().nextInt(mix.length)];
+    }
+
+    // each thread waits for its response before sending the next request; they are virtual so that the client
+    // can hold 10k connections open without 10k platform threads
+    private void runClosedLoop(int threads, Duration duration) throws InterruptedException {
+        var end = System.nanoTime() + duration.toNanos();
+        var workers = new ArrayList<Thread>();
+        var factory = Thread.ofVirtual().name("load-", 0).factory();
+        for (int i = 0; i < threads; ++i) {
+            var worker = factory.newThread(() -> {
+                while (System.nanoTime() < end) {
+                    var workload = nextWorkload();
+                    var start = System.nanoTime();
+                    try {
+                        record(workload, start, client.execute(workload).join());
+                    } catch (RuntimeException e) {
+                        record(workload, start, -1);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (var worker : workers) {
+            worker.join();
+        }
+    }
+
+    // requests are issued on a fixed schedule and latency is measured from the intended send time, so a
+    // stalled server is not hidden by coordinated omission
+    private void runOpenLoop(double rate, int maxInFlight, Duration duration) {
+        var intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        var start = System.nanoTime();
+        var end = start + duration.toNanos();
+        var inFlight = new AtomicInteger();
+        for (long i = 0;; ++i) {
+            var intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            var delay = intended - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            var workload = nextWorkload();
+            if (inFlight.get() >= maxInFlight) {
+                rejected.incrementAndGet(workload.ordinal());
+                continue;
+            }
+            inFlight.incrementAndGet();
+            client.execute(workload).whenComplete((status, error) -> {
+                inFlight.decrementAndGet();
+                record(workload, intended, error == null ? status : -1);
+            });
+        }
+        while (inFlight.get() > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    private void record(Workload workload, long startNanos, int status) {
+        var micros = Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), MAX_LATENCY_MICROS);
+        histograms.get(workload).recordValue(micros);
+        if (status < 200 || status >= 300) {
+            errors.incrementAndGet(workload.ordinal());
+        }
+    }
+
+    private JSONObject report(Duration duration) {
+        var routes = new JSONArray();
+        var total = 0L;
+        for (var workload : Workload.values()) {
+            var histogram = histograms.get(workload);
+            var count = histogram.getTotalCount();
+            total += count;
+            routes.put(new JSONObject().put("workload", workload.name()).put("count", count)
+                    .put("errors", errors.get(workload.ordinal()))
+                    .put("rejected", rejected.get(workload.ordinal()))
+                    .put("throughput", count / (double) duration.toSeconds())
+                    .put("meanMs", histogram.getMean() / 1000.0)
+                    .put("p50Ms", histogram.getValueAtPercentile(50) / 1000.0)
+                    .put("p90Ms", histogram.getValueAtPercentile(90) / 1000.0)
+                    .put("p99Ms", histogram.getValueAtPercentile(99) / 1000.0)
+                    .put("p999Ms", histogram.getValueAtPercentile(99.9) / 1000.0)
+                    .put("maxMs", histogram.getMaxValue() / 1000.0));
+        }
+        return new JSONObject().put("requests", total).put("throughput", total / (double) duration.toSeconds())
+                .put("routes", routes);
+    }
+}
@@ -0,0 +1,152 @@
+package com.manning.apisecurityinaction.benchmarks.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.json.JSONObject;
+
+/**
+ * Seeds users, spaces and messages and turns a Workload into an HTTP request against the seeded data.
+ */
+final class NatterClient {
+    private final HttpClient http;
+    private final URI baseUri;
+    private final List<User> users = new ArrayList<>();
+    private final List<Space> spaces = new ArrayList<>();
+    private final List<URI> messages = new ArrayList<>();
+    private final ConcurrentLinkedQueue<URI> deletable = new ConcurrentLinkedQueue<>();
+
+    NatterClient(URI baseUri) {
+        this.http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10)).build();
+        this.baseUri = baseUri;
+    }
+
+    void seed(int userCount, int spaceCount, int messageCount) throws Exception {
+        var runId = Long.toString(System.currentTimeMillis(), 36);
+        for (int i = 0; i < userCount; ++i) {
+            var user = new User("load" + runId + i, "password-" + runId + i);
+            send(post("/users", new JSONObject().put("username", user.name()).put("password", user.password())));
+            user.token = new JSONObject(send(login(user)).body()).getString("token");
+            users.add(user);
+        }
+        for (int i = 0; i < spaceCount; ++i) {
+            var owner = users.get(i % users.size());
+            var json = new JSONObject(send(authorized(post("/spaces", new JSONObject().put("name", "space" + runId + i))
+                    .build(), owner)).body());
+            spaces.add(new Space(URI.create(json.getString("messages-rw")), URI.create(json.getString("messages-r"))));
+        }
+        for (int i = 0; i < messageCount; ++i) {
+            var json = new JSONObject(send(postMessage(spaces.get(i % spaces.size()), users.get(i % users.size())))
+                    .body());
+            messages.add(URI.create(json.getString("uri-ro")));
+        }
+    }
+
+    // completes with the HTTP status code
+    CompletableFuture<Integer> execute(Workload workload) {
+        var random = ThreadLocalRandom.current();
+        var user = users.get(random.nextInt(users.size()));
+        var space = spaces.get(random.nextInt(spaces.size()));
+        switch (workload) {
+        case LOGIN:
+            return sendAsync(login(user));
+        case POST_MESSAGE:
+            return http.sendAsync(postMessage(space, user), HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+                if (response.statusCode() == 201) {
+                    deletable.add(URI.create(new JSONObject(response.body()).getString("uri")));
+                }
+                return response.statusCode();
+            });
+        case LIST_MESSAGES:
+            return sendAsync(HttpRequest.newBuilder(resolve(space.readUri())).GET().build());
+        case READ_MESSAGE:
+            return sendAsync(HttpRequest.newBuilder(resolve(messages.get(random.nextInt(messages.size())))).GET()
+                    .build());
+        case DELETE_MESSAGE:
+            var uri = deletable.poll();
+            if (uri == null) {
+                return execute(Workload.POST_MESSAGE);
+            }
+            return sendAsync(HttpRequest.newBuilder(resolve(uri)).DELETE().build());
+        default:
+            throw new IllegalArgumentException(workload.name());
+        }
+    }
+
+    private HttpRequest login(User user) {
+        var credentials = Base64.getEncoder()
+                .encodeToString((user.name() + ":" + user.password()).getBytes(StandardCharsets.UTF_8));
+        return post("/sessions", new JSONObject()).header("Authorization", "Basic " + credentials).build();
+    }
+
+    private HttpRequest postMessage(Space space, User user) {
+        var request = HttpRequest.newBuilder(resolve(space.writeUri())).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(new JSONObject().put("message", "hello").toString()))
+                .build();
+        return authorized(request, user);
+    }
+
+    private HttpRequest.Builder post(String path, JSONObject body) {
+        return HttpRequest.newBuilder(baseUri.resolve(path)).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+    }
+
+    private HttpRequest authorized(HttpRequest request, User user) {
+        return HttpRequest.newBuilder(request, (name, value) -> true).header("Authorization", "Bearer " + user.token)
+                .build();
+    }
+
+    private URI resolve(URI uri) {
+        return baseUri.resolve(uri);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return send(request.build());
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws Exception {
+        var response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 300) {
+            throw new IllegalStateException(request.method() + " " + request.uri() + " failed during seeding: "
+                    + response.statusCode() + " " + response.body());
+        }
+        return response;
+    }
+
+    private CompletableFuture<Integer> sendAsync(HttpRequest request) {
+        return http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(HttpResponse::statusCode);
+    }
+
+    private static final class User {
+        private final String name;
+        private final String password;
+        private volatile String token;
+
+        User(String name, String password) {
+            this.name = name;
+            this.password = password;
+        }
+
+        String name() {
+            return name;
+        }
+
+        String password() {
+            return password;
+        }
+    }
+
+    private static record Space(URI writeUri, URI readUri) {
+    }
+}
@@ -0,0 +1,124 @@
+package com.manning.apisecurityinaction.benchmarks.loadtest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Runs com.manning.apisecurityinaction.Main in a child JVM on a free local port, with a freshly generated
+ * keystore in a temporary working directory.
+ */
+final class NatterServer implements AutoCloseable {
+    private static final String KEYSTORE_PASSWORD = "loadtest";
+
+    private final Process process;
+    private final Path workDir;
+    private final URI baseUri;
+
+    private NatterServer(Process process, Path workDir, int port) {
+        this.process = process;
+        this.workDir = workDir;
+        this.baseUri = URI.create("http://localhost:" + port);
+    }
+
+    static NatterServer start(List<String> jvmArgs, Map<String, String> env) throws Exception {
+        var workDir = Files.createTempDirectory("natter-loadtest");
+        writeKeyStore(workDir.resolve("keystore.p12"));
+        var port = freePort();
+
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("com.manning.apisecurityinaction.Main");
+
+        var builder = new ProcessBuilder(command).directory(workDir.toFile())
+                .redirectOutput(workDir.resolve("server.log").toFile()).redirectErrorStream(true);
+        builder.environment().put("PORT", Integer.toString(port));
+        builder.environment().put("KEYSTORE_PASSWORD", KEYSTORE_PASSWORD);
+        builder.environment().putIfAbsent("RATE_LIMIT_SCALE", "1000");
+        builder.environment().putAll(env);
+
+        var server = new NatterServer(builder.start(), workDir, port);
+        server.awaitReady();
+        return server;
+    }
+
+    URI baseUri() {
+        return baseUri;
+    }
+
+    Path log() {
+        return workDir.resolve("server.log");
+    }
+
+    long pid() {
+        return process.pid();
+    }
+
+    private void awaitReady() throws Exception {
+        var client = HttpClient.newHttpClient();
+        var deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("server exited, see " + log());
+            }
+            try {
+                client.send(HttpRequest.newBuilder(baseUri.resolve("/logs")).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start within 30 seconds, see " + log());
+    }
+
+    private static void writeKeyStore(Path path) throws GeneralSecurityException, IOException {
+        var rng = new SecureRandom();
+        var password = KEYSTORE_PASSWORD.toCharArray();
+        var keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, password);
+        keyStore.setEntry("hmac-key", new KeyStore.SecretKeyEntry(randomKey(rng, "HmacSHA256")),
+                new KeyStore.PasswordProtection(password));
+        keyStore.setEntry("aes-key", new KeyStore.SecretKeyEntry(randomKey(rng, "AES")),
+                new KeyStore.PasswordProtection(password));
+        try (var out = new FileOutputStream(path.toFile())) {
+            keyStore.store(out, password);
+        }
+    }
+
+    private static SecretKeySpec randomKey(SecureRandom rng, String algorithm) {
+        var bytes = new byte[32];
+        rng.nextBytes(bytes);
+        return new SecretKeySpec(bytes, algorithm);
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        process.waitFor();
+    }
+}
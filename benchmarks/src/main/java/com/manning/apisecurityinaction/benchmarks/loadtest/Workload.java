@@ -0,0 +1,5 @@
+package com.manning.apisecurityinaction.benchmarks.loadtest;
+
+enum Workload {
+    LOGIN, POST_MESSAGE, LIST_MESSAGES, READ_MESSAGE, DELETE_MESSAGE
+}
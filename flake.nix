@@ -10,7 +10,7 @@
           devShell = with pkgs; mkShell {
             buildInputs = [
               bashInteractive
-              jdk17_headless
+              jdk21_headless
               maven
               mkcert
               protobuf
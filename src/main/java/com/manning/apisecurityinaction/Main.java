@@ -2,29 +2,61 @@ package com.manning.apisecurityinaction;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.manning.apisecurityinaction.audit.AuditIdAllocator;
+import com.manning.apisecurityinaction.audit.AuditSink;
+import com.manning.apisecurityinaction.audit.BatchingAuditSink;
+import com.manning.apisecurityinaction.audit.SegmentAuditSink;
 import com.manning.apisecurityinaction.controller.AuditController;
 import com.manning.apisecurityinaction.controller.CapabilityController;
+import com.manning.apisecurityinaction.controller.ConcurrencyLimiter;
+import com.manning.apisecurityinaction.controller.MessageCache;
+import com.manning.apisecurityinaction.controller.MessageHub;
 import com.manning.apisecurityinaction.controller.ModeratorController;
+import com.manning.apisecurityinaction.controller.PasswordHasher;
+import com.manning.apisecurityinaction.controller.RateLimiter;
 import com.manning.apisecurityinaction.controller.Permission;
+import com.manning.apisecurityinaction.controller.RecentMessageIndex;
 import com.manning.apisecurityinaction.controller.SpaceController;
+import com.manning.apisecurityinaction.controller.SpaceVersions;
 import com.manning.apisecurityinaction.controller.TokenController;
 import com.manning.apisecurityinaction.controller.UserController;
+import com.manning.apisecurityinaction.metrics.MetricsRegistry;
+import com.manning.apisecurityinaction.metrics.TimedDataSource;
+import com.manning.apisecurityinaction.server.PermitDataSource;
+import com.manning.apisecurityinaction.server.VirtualThreadPool;
+import com.manning.apisecurityinaction.token.AuthenticatedTokenStore;
+import com.manning.apisecurityinaction.token.AuthnToken;
 import com.manning.apisecurityinaction.token.AuthnTokenStore;
+import com.manning.apisecurityinaction.token.CachingAuthnTokenStore;
+import com.manning.apisecurityinaction.token.Capability;
+import com.manning.apisecurityinaction.token.CapabilityCompactor;
 import com.manning.apisecurityinaction.token.CapabilityStore;
+import com.manning.apisecurityinaction.token.EncryptedTokenStore;
+import com.manning.apisecurityinaction.token.ExpirySweeper;
 import com.manning.apisecurityinaction.token.HmacTokenStore;
+import com.manning.apisecurityinaction.token.JsonTokenStore;
+import com.manning.apisecurityinaction.token.PathRevoker;
+import com.manning.apisecurityinaction.token.RevocationList;
+import com.manning.apisecurityinaction.token.SecureTokenStore;
+import com.manning.apisecurityinaction.token.StatelessCapabilityStore;
+
+import javax.sql.DataSource;
 
 import org.dalesbred.Database;
 import org.dalesbred.result.EmptyResultException;
@@ -34,13 +66,26 @@ import org.json.JSONObject;
 
 import spark.Request;
 import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
+import static com.manning.apisecurityinaction.json.JsonResponse.streamed;
 import static spark.Spark.*;
 import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
 
 public class Main {
-    public static void main(String[] args) throws URISyntaxException, IOException, KeyStoreException,
+    public static void main(String[] args) throws IOException, KeyStoreException,
             NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException {
+        // Server-Timing exposes internal latencies to clients, so it is only sent when asked for
+        var metrics = new MetricsRegistry("true".equals(System.getenv("SERVER_TIMING")));
+        // must be registered before the first route starts the server
+        var virtualThreads = "virtual".equals(System.getenv("REQUEST_THREADS"));
+        if (virtualThreads) {
+            var threadPool = new VirtualThreadPool();
+            metrics.gauge("natter_virtual_threads", "Virtual threads running Jetty tasks", "", threadPool::getThreads);
+            EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+                    new EmbeddedJettyFactory().withThreadPool(threadPool));
+        }
         // TODO: https on heroku
         staticFiles.location("/public");
         port(Integer.parseInt(castNonNull(System.getenv("PORT"), "heroku sets PORT")));
@@ -58,24 +103,155 @@ public class Main {
         createTables(database);
         dataSource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter_api_user", "password");
 
-        database = Database.forDataSource(dataSource);
+        var pool = dataSource;
+        metrics.gauge("natter_jdbc_pool_active_connections", "Connections currently checked out", "",
+                pool::getActiveConnections);
+        metrics.gauge("natter_jdbc_pool_max_connections", "Maximum pool size", "", pool::getMaxConnections);
+        DataSource apiDataSource = dataSource;
+        if (virtualThreads) {
+            apiDataSource = new PermitDataSource(dataSource, dataSource.getMaxConnections());
+        }
+        database = Database.forDataSource(new TimedDataSource(apiDataSource,
+                metrics.histogram("natter_jdbc_pool_wait_seconds", "Time spent waiting for a pooled connection", "")));
         var rng = new SecureRandom();
-        var capStore = HmacTokenStore.wrap(new CapabilityStore(database, rng), macKey);
+        var expirySweeper = new ExpirySweeper(database, 500, 20, Duration.ofMinutes(1), Duration.ofSeconds(1));
+        AuthenticatedTokenStore<Capability> capStore;
+        PathRevoker capRevoker;
+        if ("stateless".equals(System.getenv("CAPABILITY_TOKENS"))) {
+            var stateless = new StatelessCapabilityStore(rng, Duration.ofDays(7), new RevocationList());
+            capStore = HmacTokenStore.wrap(stateless, macKey);
+            // the tokens cannot be counted, only rejected from now on
+            capRevoker = path -> {
+                stateless.revokeAll(path);
+                return 0;
+            };
+        } else {
+            var capabilityStore = new CapabilityStore(database, rng);
+            capStore = HmacTokenStore.wrap(capabilityStore, macKey);
+            capRevoker = capabilityStore;
+            expirySweeper.register("caps", "cap_id");
+            var compactor = new CapabilityCompactor(database, 500, Duration.ofHours(1)).start();
+            metrics.counter("natter_caps_compacted_total", "Orphaned capabilities reclaimed by compaction", "",
+                    compactor::reclaimedCount);
+            metrics.gauge("natter_caps_compaction_last_scanned", "Capabilities scanned by the last compaction", "",
+                    () -> compactor.lastCompaction().scanned());
+            metrics.gauge("natter_caps_compaction_last_reclaimed", "Capabilities reclaimed by the last compaction",
+                    "", () -> compactor.lastCompaction().reclaimed());
+        }
         var capController = new CapabilityController(capStore);
-        var spaceController = new SpaceController(database, capController);
-        var userController = new UserController(database);
-        var auditController = new AuditController(database);
-        var moderatorController = new ModeratorController(database);
-        var authnTokenStore = HmacTokenStore.wrap(new AuthnTokenStore(database, rng), macKey);
+        var messageCache = new MessageCache(64 * 1024 * 1024);
+        var messageHub = new MessageHub(64, 50_000, Duration.ofSeconds(15), Duration.ofMinutes(1));
+        metrics.gauge("natter_sse_subscribers", "Open Server-Sent Events streams", "", messageHub::subscriberCount);
+        metrics.counter("natter_sse_slow_consumers_total", "Streams disconnected for falling behind", "",
+                messageHub::slowConsumerCount);
+        var recentMessages = new RecentMessageIndex(16 * 1024, 4096, Duration.ofDays(1));
+        metrics.counter("natter_recent_index_hits_total", "Message listings answered from the recent index", "",
+                recentMessages::hitCount);
+        metrics.counter("natter_recent_index_fallbacks_total", "Message listings that queried the database", "",
+                recentMessages::fallbackCount);
+        metrics.gauge("natter_recent_index_spaces", "Spaces held in the recent index", "",
+                recentMessages::spaceCount);
+        var spaceVersions = new SpaceVersions(100_000, Duration.ofMinutes(10));
+        var spaceController = new SpaceController(database, capController, messageCache, messageHub,
+                recentMessages, spaceVersions, Duration.ofDays(1));
+        var passwordHasher = new PasswordHasher(Runtime.getRuntime().availableProcessors(), 16, Duration.ofMinutes(5),
+                rng);
+        var userController = new UserController(database, passwordHasher);
+        metrics.gauge("natter_scrypt_queue_depth", "Password hashes waiting for a thread", "",
+                passwordHasher::queueDepth);
+        metrics.gauge("natter_scrypt_active_threads", "Password hashes in progress", "", passwordHasher::activeCount);
+        metrics.cache("password", passwordHasher::stats);
+        metrics.cache("message", messageCache::stats);
+        AuditSink auditSink;
+        if ("segments".equals(System.getenv("AUDIT_SINK"))) {
+            var segmentSink = new SegmentAuditSink(Path.of(Objects.requireNonNullElse(System.getenv("AUDIT_DIR"),
+                    "audit")), 64 * 1024 * 1024, 1024 * 1024, Duration.ofSeconds(1), Duration.ofDays(30));
+            metrics.counter("natter_audit_events_written_total", "Audit events written to segment files", "",
+                    segmentSink::writtenCount);
+            metrics.counter("natter_audit_events_dropped_total", "Audit events that could not be written", "",
+                    segmentSink::droppedCount);
+            metrics.gauge("natter_audit_segments", "Audit segment files, including the active one", "",
+                    segmentSink::segmentCount);
+            auditSink = segmentSink;
+        } else {
+            var overflowPolicy = BatchingAuditSink.OverflowPolicy
+                    .valueOf(Objects.requireNonNullElse(System.getenv("AUDIT_OVERFLOW_POLICY"), "DROP"));
+            var batchingSink = new BatchingAuditSink(database, 10_000, 500, Duration.ofMillis(200), overflowPolicy,
+                    10).start();
+            metrics.counter("natter_audit_events_written_total", "Audit events written to the database", "",
+                    batchingSink::writtenCount);
+            metrics.counter("natter_audit_events_dropped_total", "Audit events dropped by the overflow policy", "",
+                    batchingSink::droppedCount);
+            metrics.counter("natter_audit_events_sampled_out_total", "Audit events skipped by sampling", "",
+                    batchingSink::sampledOutCount);
+            auditSink = batchingSink;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(auditSink::close));
+        var auditController = new AuditController(auditSink, new AuditIdAllocator(database));
+        var moderatorController = new ModeratorController(database, messageCache, recentMessages, spaceVersions,
+                capRevoker);
+        SecureTokenStore<AuthnToken> authnTokenStore;
+        if ("sealed".equals(System.getenv("AUTHN_TOKENS"))) {
+            // the committed keystore only holds hmac-key; add the AES key to it with
+            //   keytool -genseckey -keyalg AES -keysize 256 -alias aes-key -keystore keystore.p12 -storetype PKCS12
+            var encKey = keyStore.getKey("aes-key", keyPassword);
+            if (encKey == null) {
+                throw new IllegalStateException("AUTHN_TOKENS=sealed needs an AES key with alias aes-key in "
+                        + "keystore.p12, see keytool -genseckey -keyalg AES -keysize 256 -alias aes-key");
+            }
+            authnTokenStore = EncryptedTokenStore.wrap(new JsonTokenStore(rng, new RevocationList()), encKey);
+        } else {
+            var cachingStore = new CachingAuthnTokenStore(
+                    HmacTokenStore.wrap(new AuthnTokenStore(database, rng), macKey), 10_000, Duration.ofSeconds(30),
+                    Duration.ofSeconds(10)).start();
+            metrics.cache("authn_token", cachingStore::stats);
+            metrics.cache("authn_token_negative", cachingStore::negativeStats);
+            authnTokenStore = cachingStore;
+            expirySweeper.register("tokens", "token_id");
+        }
+        // only the tables this configuration stores rows in, so that no series stays at zero forever
+        for (var table : expirySweeper.tables()) {
+            var label = MetricsRegistry.label("table", table);
+            metrics.counter("natter_expiry_deleted_rows_total", "Expired rows deleted by the sweeper", label,
+                    () -> expirySweeper.deletedCount(table));
+            metrics.gauge("natter_expiry_last_sweep_rows", "Expired rows deleted by the most recent sweep", label,
+                    () -> expirySweeper.lastSweep().deleted().getOrDefault(table, 0L));
+        }
+        expirySweeper.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(expirySweeper::close));
         var tokenController = new TokenController(authnTokenStore);
 
-        var rateLimiter = RateLimiter.create(2.0d);
-        before((request, response) -> {
-            if (!rateLimiter.tryAcquire()) {
-                response.header("Retry-After", "2");
-                halt(429);
+        var rateLimitScale = Double.parseDouble(Objects.requireNonNullElse(System.getenv("RATE_LIMIT_SCALE"), "1"));
+        var passwordLimiter = new RateLimiter(1.0d, 5, rateLimitScale);
+        var rateLimiter = new RateLimiter(10.0d, 20, rateLimitScale).route("POST", "/users", 1.0d, 5)
+                .route("POST", "/spaces/:spaceId/messages/batch", 1.0d, 5)
+                .route("GET", "/spaces/:spaceId/messages", 50.0d, 100)
+                .route("GET", "/spaces/:spaceId/messages/:msgId", 50.0d, 100);
+
+        // first, so that shed requests cost no more than classifying them
+        // listings mint a capability per message, up to a thousand inserts, so they are not cheap reads
+        var concurrencyLimiter = new ConcurrencyLimiter(64, 8, 1024)
+                .route("POST", "/users", ConcurrencyLimiter.Priority.LOW)
+                .route("GET", "/spaces/:spaceId/messages", ConcurrencyLimiter.Priority.NORMAL)
+                .route("GET", "/logs", ConcurrencyLimiter.Priority.NORMAL);
+        metrics.gauge("natter_concurrency_limit", "Current adaptive limit on requests in flight", "",
+                concurrencyLimiter::limit);
+        metrics.gauge("natter_concurrency_in_flight", "Requests holding a concurrency permit", "",
+                concurrencyLimiter::inFlight);
+        for (var priority : ConcurrencyLimiter.Priority.values()) {
+            metrics.counter("natter_requests_shed_total", "Requests rejected by the concurrency limit",
+                    MetricsRegistry.label("priority", priority.name().toLowerCase(Locale.ROOT)),
+                    () -> concurrencyLimiter.rejectedCount(priority));
+        }
+        before(metrics.filter("concurrency_limit", concurrencyLimiter::acquire));
+        afterAfter(concurrencyLimiter::release);
+
+        before(metrics.filter("password_rate_limit", (request, response) -> {
+            var authHeader = request.headers("Authorization");
+            if (authHeader != null && authHeader.startsWith("Basic ")) {
+                passwordLimiter.enforce(request, response);
             }
-        });
+        }));
 
         before((request, response) -> {
             if (request.requestMethod().equals("POST") && !"application/json".equals(request.contentType())) {
@@ -83,48 +259,74 @@ public class Main {
             }
         });
 
-        afterAfter((request, response) -> {
-            response.type("application/json;charset=utf-8");
-            response.header("X-Content-Type-Options", "nosniff");
-            response.header("X-Frame-Options", "DENY");
-            response.header("X-XSS-Protection", "0");
-            response.header("Cache-Control", "no-store");
-            response.header("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
-            response.header("Server", "");
-        });
+        // streamed responses are committed before afterAfter runs, so set the headers up front as well
+        before(Main::securityHeaders);
+        afterAfter(Main::securityHeaders);
 
-        before(userController::authenticate);
-        before(tokenController::validateToken);
+        before(metrics.filter("authenticate", userController::authenticate));
+        before(metrics.filter("validate_token", tokenController::validateToken));
+        before(metrics.filter("rate_limit", rateLimiter::enforce));
 
-        before(auditController::auditRequestStart);
-        afterAfter(auditController::auditRequestEnd);
+        before(metrics.filter("audit_start", auditController::auditRequestStart));
+        afterAfter(metrics.filter("audit_end", auditController::auditRequestEnd));
 
         before("/sessions", userController::requireAuthentication);
-        post("/sessions", tokenController::login);
-        delete("/sessions", tokenController::logout);
+        post("/sessions", metrics.route("POST /sessions", streamed(tokenController::login)));
+        delete("/sessions", metrics.route("DELETE /sessions", streamed(tokenController::logout)));
 
         before("/spaces", userController::requireAuthentication);
-        post("/spaces", spaceController::createSpace);
+        post("/spaces", metrics.route("POST /spaces", streamed(spaceController::createSpace)));
 
         before("/spaces/:spaceId/messages", (request, response) -> {
             if (request.requestMethod().equalsIgnoreCase("POST")) {
                 userController.requireAuthentication(request, response);
             }
         });
-        before("/spaces/:spaceId/messages", capController::lookupPermissions);
+        before("/spaces/:spaceId/messages", metrics.filter("lookup_permissions", capController::lookupPermissions));
         before("/spaces/:spaceId/messages", capController.requirePermission("POST", EnumSet.of(Permission.Write)));
-        post("/spaces/:spaceId/messages", spaceController::postMessage);
+        post("/spaces/:spaceId/messages",
+                metrics.route("POST /spaces/:spaceId/messages", streamed(spaceController::postMessage)));
         before("/spaces/:spaceId/messages", capController.requirePermission("GET", EnumSet.of(Permission.Read)));
-        get("/spaces/:spaceId/messages", spaceController::findMessages);
+        get("/spaces/:spaceId/messages",
+                metrics.route("GET /spaces/:spaceId/messages", spaceController::findMessages));
+
+        before("/spaces/:spaceId/messages/batch", userController::requireAuthentication);
+        before("/spaces/:spaceId/messages/batch",
+                metrics.filter("lookup_permissions", capController::lookupParentPermissions));
+        before("/spaces/:spaceId/messages/batch",
+                capController.requirePermission("POST", EnumSet.of(Permission.Write)));
+        post("/spaces/:spaceId/messages/batch",
+                metrics.route("POST /spaces/:spaceId/messages/batch", streamed(spaceController::postMessages)));
 
-        before("/spaces/:spaceId/messages/*", capController::lookupPermissions);
+        var lookupMessagePermissions = metrics.filter("lookup_permissions", capController::lookupPermissions);
+        before("/spaces/:spaceId/messages/*", (request, response) -> {
+            // batch posts have already been looked up against their parent path
+            if (!request.pathInfo().endsWith("/messages/batch")) {
+                lookupMessagePermissions.handle(request, response);
+            }
+        });
         before("/spaces/:spaceId/messages/*", capController.requirePermission("GET", EnumSet.of(Permission.Read)));
-        get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage);
+        get("/spaces/:spaceId/messages/:msgId",
+                metrics.route("GET /spaces/:spaceId/messages/:msgId", spaceController::readMessage));
         before("/spaces/:spaceId/messages/*", capController.requirePermission("DELETE", EnumSet.of(Permission.Delete)));
-        delete("/spaces/:spaceId/messages/:msgId", moderatorController::deletePost);
+        delete("/spaces/:spaceId/messages/:msgId",
+                metrics.route("DELETE /spaces/:spaceId/messages/:msgId", streamed(moderatorController::deletePost)));
+
+        get("/logs", metrics.route("GET /logs", streamed(auditController::readAuditLog)));
+        post("/users", metrics.route("POST /users", streamed(userController::registerUser)));
+        // pool, cache and queue figures are for operators only, named in METRICS_USERS as comma-separated user ids
+        var metricsUsers = Arrays.stream(Objects.requireNonNullElse(System.getenv("METRICS_USERS"), "").split(","))
+                .map(String::trim).filter(user -> !user.isEmpty()).collect(Collectors.toSet());
+        before("/metrics", userController::requireAuthentication);
+        before("/metrics", (request, response) -> {
+            if (!metricsUsers.contains(request.<String>attribute("subject"))) {
+                halt(403);
+            }
+        });
+        get("/metrics", metrics::scrape);
 
-        get("/logs", auditController::readAuditLog);
-        post("/users", userController::registerUser);
+        // registered last so that it sees the audit_end timing
+        afterAfter(metrics::serverTiming);
 
         internalServerError(new JSONObject().put("error", "internal server error").toString());
         notFound(new JSONObject().put("error", "not found").toString());
@@ -132,16 +334,40 @@ public class Main {
         exception(IllegalArgumentException.class, Main::badRequest);
         exception(JSONException.class, Main::badRequest);
         exception(EmptyResultException.class, (e, request, response) -> response.status(404));
+        exception(RejectedExecutionException.class, Main::serviceUnavailable);
     }
 
-    private static void createTables(Database database) throws URISyntaxException, IOException {
-        var path = Paths
-                .get(castNonNull(Main.class.getResource("/schema.sql"), "resource \"/schema.sql\" exists").toURI());
-        database.update(Files.readString(path));
+    private static void createTables(Database database) throws IOException {
+        // read as a stream rather than a Path so that this also works when running from a jar
+        try (var schema = castNonNull(Main.class.getResourceAsStream("/schema.sql"),
+                "resource \"/schema.sql\" exists")) {
+            database.update(new String(schema.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    // set rather than added, since this runs both before and after the route
+    private static void securityHeaders(Request request, Response response) {
+        var raw = response.raw();
+        response.type("application/json;charset=utf-8");
+        raw.setHeader("X-Content-Type-Options", "nosniff");
+        raw.setHeader("X-Frame-Options", "DENY");
+        raw.setHeader("X-XSS-Protection", "0");
+        // responses with an ETag have chosen their own caching so that clients can revalidate them
+        if (!raw.containsHeader("ETag")) {
+            raw.setHeader("Cache-Control", "no-store");
+        }
+        raw.setHeader("Content-Security-Policy", "default-src 'none'; frame-ancestors 'none'; sandbox");
+        raw.setHeader("Server", "");
     }
 
     private static void badRequest(Exception ex, Request request, Response response) {
         response.status(400);
         response.body(new JSONObject().put("error", Objects.requireNonNullElse(ex.getMessage(), "")).toString());
     }
+
+    private static void serviceUnavailable(Exception ex, Request request, Response response) {
+        response.status(503);
+        response.header("Retry-After", "1");
+        response.body(new JSONObject().put("error", "server busy").toString());
+    }
 }
\ No newline at end of file
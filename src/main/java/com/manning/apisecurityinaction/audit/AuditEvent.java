@@ -0,0 +1,9 @@
+package com.manning.apisecurityinaction.audit;
+
+import java.time.Instant;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+public record AuditEvent(@Nullable Long auditId, String method, String path, @Nullable String userId,
+        @Nullable Integer status, Instant time) {
+}
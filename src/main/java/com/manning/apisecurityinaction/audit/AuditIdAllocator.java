@@ -0,0 +1,32 @@
+package com.manning.apisecurityinaction.audit;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.dalesbred.Database;
+
+public final class AuditIdAllocator {
+    // must match the INCREMENT BY of audit_id_seq in schema.sql
+    private static final int BLOCK_SIZE = 100;
+
+    private final Database database;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long next;
+    private long limit;
+
+    public AuditIdAllocator(Database database) {
+        this.database = database;
+    }
+
+    public long nextId() {
+        lock.lock();
+        try {
+            if (next == limit) {
+                next = database.findUniqueLong("SELECT NEXT VALUE FOR audit_id_seq");
+                limit = next + BLOCK_SIZE;
+            }
+            return next++;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
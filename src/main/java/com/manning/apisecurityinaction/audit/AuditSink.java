@@ -0,0 +1,13 @@
+package com.manning.apisecurityinaction.audit;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface AuditSink extends AutoCloseable {
+    void write(AuditEvent event);
+
+    List<AuditEvent> readSince(Instant since, int limit);
+
+    @Override
+    void close();
+}
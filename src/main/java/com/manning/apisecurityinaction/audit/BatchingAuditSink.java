@@ -0,0 +1,203 @@
+package com.manning.apisecurityinaction.audit;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
+
+public final class BatchingAuditSink implements AuditSink {
+    private static final Logger logger = LoggerFactory.getLogger(BatchingAuditSink.class);
+    private static final String INSERT_EVENT =
+            "INSERT INTO audit_log(audit_id, method, path, status, user_id, audit_time) VALUES(?, ?, ?, ?, ?, ?)";
+    // column sizes in audit_log
+    private static final int MAX_METHOD = 10;
+    private static final int MAX_PATH = 100;
+    private static final int MAX_USER_ID = 30;
+
+    public enum OverflowPolicy {
+        BLOCK, DROP, SAMPLE
+    }
+
+    private final Database database;
+    private final BlockingQueue<AuditEvent> queue;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleRate;
+    private volatile @Nullable Thread writer;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong sampledOutCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    public BatchingAuditSink(Database database, int capacity, int batchSize, Duration flushInterval,
+            OverflowPolicy overflowPolicy, int sampleRate) {
+        this.database = database;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = sampleRate;
+    }
+
+    // starts the writer thread, which must not see the sink before it is fully constructed
+    public BatchingAuditSink start() {
+        var thread = new Thread(this::run, "audit-writer");
+        thread.setDaemon(true);
+        thread.start();
+        writer = thread;
+        return this;
+    }
+
+    @Override
+    public void write(AuditEvent event) {
+        // clients choose the path, and one row that does not fit would fail the whole batch
+        event = fitColumns(event);
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedCount.incrementAndGet();
+            }
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.SAMPLE && queue.remainingCapacity() < queue.size()
+                && !isSampled(event)) {
+            sampledOutCount.incrementAndGet();
+            return;
+        }
+        if (!queue.offer(event)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private static AuditEvent fitColumns(AuditEvent event) {
+        var userId = event.userId();
+        if (event.method().length() <= MAX_METHOD && event.path().length() <= MAX_PATH
+                && (userId == null || userId.length() <= MAX_USER_ID)) {
+            return event;
+        }
+        return new AuditEvent(event.auditId(), truncate(event.method(), MAX_METHOD),
+                truncate(event.path(), MAX_PATH), userId == null ? null : truncate(userId, MAX_USER_ID),
+                event.status(), event.time());
+    }
+
+    private static String truncate(String value, int length) {
+        return value.length() <= length ? value : value.substring(0, length);
+    }
+
+    private boolean isSampled(AuditEvent event) {
+        // sample on the audit id so that both halves of a request are kept or dropped together
+        var auditId = event.auditId();
+        return auditId != null && auditId % sampleRate == 0;
+    }
+
+    @Override
+    public List<AuditEvent> readSince(Instant since, int limit) {
+        return database.findAll(BatchingAuditSink::readEvent,
+                "SELECT * FROM audit_log WHERE audit_time >= ? LIMIT ?", since, limit);
+    }
+
+    private static AuditEvent readEvent(ResultSet row) throws SQLException {
+        return new AuditEvent(row.getLong("audit_id"),
+                castNonNull(row.getString("method"), "column method is nonnull by db constraint"),
+                castNonNull(row.getString("path"), "column path is nonnull by db constraint"),
+                row.getString("user_id"), row.getInt("status"),
+                castNonNull(row.getTimestamp("audit_time"), "column timestamp is nonnull by db constraint")
+                        .toInstant());
+    }
+
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    public long sampledOutCount() {
+        return sampledOutCount.get();
+    }
+
+    public long writtenCount() {
+        return writtenCount.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        var thread = writer;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        var batch = new ArrayList<AuditEvent>(batchSize);
+        var deadline = 0L;
+        while (running || !queue.isEmpty()) {
+            try {
+                var timeout = batch.isEmpty() ? flushIntervalNanos : deadline - System.nanoTime();
+                var event = queue.poll(Math.max(timeout, 0L), TimeUnit.NANOSECONDS);
+                if (event != null) {
+                    if (batch.isEmpty()) {
+                        deadline = System.nanoTime() + flushIntervalNanos;
+                    }
+                    batch.add(event);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (batch.size() >= batchSize || (!batch.isEmpty() && System.nanoTime() - deadline >= 0)) {
+                flush(batch);
+            }
+        }
+        queue.drainTo(batch);
+        flush(batch);
+    }
+
+    private void flush(List<AuditEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        var rows = new ArrayList<List<?>>(batch.size());
+        for (var event : batch) {
+            rows.add(Arrays.asList(event.auditId(), event.method(), event.path(), event.status(), event.userId(),
+                    event.time()));
+        }
+        try {
+            database.withVoidTransaction(tx -> database.updateBatch(INSERT_EVENT, rows));
+            writtenCount.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            logger.warn("failed to write {} audit events as a batch, retrying one at a time", batch.size(), e);
+            // so that one bad row costs only itself
+            for (var row : rows) {
+                try {
+                    database.updateBatch(INSERT_EVENT, List.of(row));
+                    writtenCount.incrementAndGet();
+                } catch (RuntimeException rowFailure) {
+                    logger.warn("failed to write audit event {}", row, rowFailure);
+                    droppedCount.incrementAndGet();
+                }
+            }
+        }
+        batch.clear();
+    }
+}
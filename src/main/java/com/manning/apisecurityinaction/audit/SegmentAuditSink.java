@@ -0,0 +1,631 @@
+package com.manning.apisecurityinaction.audit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Appends audit events as compact binary records to memory-mapped segment files, keeping audit writes out of the
+// database. The active segment is forced to disk every checkpointBytes or checkpointInterval, whichever comes
+// first. Full segments are sealed in the background into independently deflated blocks. Every segment keeps a
+// sparse time index, so readSince skips the blocks and segments that are older than the cutoff. Segments older
+// than the retention period are deleted.
+//
+// A record is [length][crc32][body]. A zero length marks the end of an active segment, and recovery stops at
+// the first record whose checksum does not match.
+public final class SegmentAuditSink implements AuditSink {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentAuditSink.class);
+
+    private static final int SEALED_MAGIC = 0x4e415331;
+    private static final int HEADER_BYTES = 8;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int HAS_ID = 1;
+    private static final int HAS_USER = 2;
+    private static final int HAS_STATUS = 4;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int checkpointBytes;
+    private final Duration retention;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("audit-segments").setDaemon(true).build());
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private ActiveSegment active;
+    private int checkpointed;
+    private boolean checkpointPending;
+    private boolean closed;
+
+    public SegmentAuditSink(Path directory, int segmentBytes, int checkpointBytes, Duration checkpointInterval,
+            Duration retention) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.checkpointBytes = checkpointBytes;
+        this.retention = retention;
+        Files.createDirectories(directory);
+        var recovery = recover(directory, segmentBytes);
+        segments.addAll(recovery.segments());
+        this.active = recovery.active();
+        for (var unsealed : recovery.unsealed()) {
+            executor.execute(() -> seal(unsealed));
+        }
+        executor.scheduleWithFixedDelay(this::checkpoint, checkpointInterval.toMillis(),
+                checkpointInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void write(AuditEvent event) {
+        byte[] record;
+        try {
+            record = encode(event);
+        } catch (IOException e) {
+            // only a path or user too long for writeUTF gets here
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (record.length > segmentBytes) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            if (!active.append(record, epochNanos(event.time()))) {
+                rotate();
+                active.append(record, epochNanos(event.time()));
+            }
+            writtenCount.incrementAndGet();
+            if (active.position - checkpointed >= checkpointBytes && !checkpointPending) {
+                checkpointPending = true;
+                executor.execute(this::checkpoint);
+            }
+        } catch (IOException e) {
+            logger.warn("failed to start a new audit segment", e);
+            droppedCount.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<AuditEvent> readSince(Instant since, int limit) {
+        var sinceNanos = epochNanos(since);
+        var result = new ArrayList<AuditEvent>(limit);
+        try {
+            for (var segment : segments) {
+                if (segment.maxNanos() >= sinceNanos) {
+                    segment.read(sinceNanos, limit, result);
+                    if (result.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    public long writtenCount() {
+        return writtenCount.get();
+    }
+
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            active.buffer.force();
+        } finally {
+            lock.unlock();
+        }
+        // let queued sealing finish; the active segment is recovered from its log file on the next start
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // called with the lock held
+    private void rotate() throws IOException {
+        var full = active;
+        active = ActiveSegment.create(directory, full.sequence + 1, segmentBytes);
+        segments.add(active);
+        checkpointed = 0;
+        executor.execute(() -> seal(full));
+    }
+
+    private void checkpoint() {
+        ActiveSegment segment;
+        lock.lock();
+        try {
+            checkpointPending = false;
+            if (closed) {
+                return;
+            }
+            segment = active;
+            checkpointed = segment.position;
+        } finally {
+            lock.unlock();
+        }
+        // force may run alongside appends; anything appended meanwhile goes out with the next checkpoint
+        segment.buffer.force();
+        deleteExpired();
+    }
+
+    private void deleteExpired() {
+        var cutoff = epochNanos(Instant.now().minus(retention));
+        for (var segment : segments) {
+            if (segment instanceof SealedSegment sealed && sealed.maxNanos() < cutoff) {
+                try {
+                    Files.deleteIfExists(sealed.path);
+                    segments.remove(sealed);
+                } catch (IOException e) {
+                    logger.warn("failed to delete audit segment {}", sealed.path, e);
+                }
+            }
+        }
+    }
+
+    private void seal(ActiveSegment segment) {
+        var sealedPath = segment.path.resolveSibling(name(segment.sequence, ".seg"));
+        var tempPath = segment.path.resolveSibling(name(segment.sequence, ".seg.tmp"));
+        try {
+            segment.buffer.force();
+            var sealed = SealedSegment.write(segment, tempPath, sealedPath);
+            Files.move(tempPath, sealedPath, StandardCopyOption.ATOMIC_MOVE);
+            segments.replaceAll(existing -> existing == segment ? sealed : existing);
+            Files.delete(segment.path);
+        } catch (IOException e) {
+            // the log file stays readable through its mapping and is sealed again on the next start
+            logger.warn("failed to seal audit segment {}", segment.path, e);
+        }
+    }
+
+    private static Recovery recover(Path directory, int segmentBytes) throws IOException {
+        var logs = new TreeMap<Long, Path>();
+        var sealed = new TreeMap<Long, Path>();
+        try (var files = Files.list(directory)) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                var fileName = file.getFileName();
+                if (fileName == null) {
+                    continue;
+                }
+                var name = fileName.toString();
+                if (name.endsWith(".log")) {
+                    logs.put(Long.parseLong(name.substring(0, name.length() - 4)), file);
+                } else if (name.endsWith(".seg")) {
+                    sealed.put(Long.parseLong(name.substring(0, name.length() - 4)), file);
+                } else if (name.endsWith(".seg.tmp")) {
+                    Files.delete(file);
+                }
+            }
+        }
+        var recovered = new TreeMap<Long, Segment>();
+        for (var entry : sealed.entrySet()) {
+            recovered.put(entry.getKey(), SealedSegment.open(entry.getKey(), entry.getValue()));
+        }
+        for (var entry : logs.entrySet()) {
+            if (sealed.containsKey(entry.getKey())) {
+                // sealed before a crash but not yet deleted
+                Files.delete(entry.getValue());
+            } else {
+                recovered.put(entry.getKey(), ActiveSegment.open(entry.getKey(), entry.getValue(), segmentBytes));
+            }
+        }
+        var segments = new ArrayList<Segment>(recovered.values());
+
+        var lastEntry = recovered.lastEntry();
+        var last = lastEntry == null ? null : lastEntry.getValue();
+        if (last instanceof ActiveSegment segment) {
+            var unsealed = new ArrayList<ActiveSegment>();
+            for (var older : recovered.headMap(segment.sequence).values()) {
+                if (older instanceof ActiveSegment log) {
+                    unsealed.add(log);
+                }
+            }
+            return new Recovery(segments, segment, unsealed);
+        }
+        var next = last == null ? 0 : last.sequence() + 1;
+        var segment = ActiveSegment.create(directory, next, segmentBytes);
+        segments.add(segment);
+        return new Recovery(segments, segment, List.of());
+    }
+
+    private static String name(long sequence, String suffix) {
+        return String.format("%016d%s", sequence, suffix);
+    }
+
+    private static long epochNanos(Instant time) {
+        return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+    }
+
+    private static byte[] encode(AuditEvent event) throws IOException {
+        var bytes = new ByteArrayOutputStream(64);
+        var out = new DataOutputStream(bytes);
+        var auditId = event.auditId();
+        var userId = event.userId();
+        var status = event.status();
+        out.writeLong(0L);
+        out.writeByte((auditId != null ? HAS_ID : 0) | (userId != null ? HAS_USER : 0)
+                | (status != null ? HAS_STATUS : 0));
+        if (auditId != null) {
+            out.writeLong(auditId);
+        }
+        out.writeLong(event.time().getEpochSecond());
+        out.writeInt(event.time().getNano());
+        out.writeUTF(event.method());
+        out.writeUTF(event.path());
+        if (userId != null) {
+            out.writeUTF(userId);
+        }
+        if (status != null) {
+            out.writeShort(status);
+        }
+        var record = bytes.toByteArray();
+        var crc = new CRC32();
+        crc.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+        ByteBuffer.wrap(record).putInt(0, record.length - HEADER_BYTES).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    // the length of the valid record at offset, or -1 at the end of the records
+    private static int recordLength(ByteBuffer buffer, int offset, int end) {
+        if (end - offset < HEADER_BYTES) {
+            return -1;
+        }
+        var length = buffer.getInt(offset);
+        if (length <= 0 || length > end - offset - HEADER_BYTES) {
+            return -1;
+        }
+        var crc = new CRC32();
+        crc.update(buffer.duplicate().position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length));
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? HEADER_BYTES + length : -1;
+    }
+
+    private static long recordTime(ByteBuffer buffer, int offset) {
+        var flags = buffer.get(offset + HEADER_BYTES);
+        var timeOffset = offset + HEADER_BYTES + 1 + ((flags & HAS_ID) != 0 ? 8 : 0);
+        return buffer.getLong(timeOffset) * 1_000_000_000L + buffer.getInt(timeOffset + 8);
+    }
+
+    private static AuditEvent decode(ByteBuffer buffer, int offset, int length) throws IOException {
+        var body = new byte[length - HEADER_BYTES];
+        buffer.get(offset + HEADER_BYTES, body);
+        var in = new DataInputStream(new ByteArrayInputStream(body));
+        var flags = in.readByte();
+        var auditId = (flags & HAS_ID) != 0 ? in.readLong() : null;
+        var time = Instant.ofEpochSecond(in.readLong(), in.readInt());
+        var method = in.readUTF();
+        var path = in.readUTF();
+        var userId = (flags & HAS_USER) != 0 ? in.readUTF() : null;
+        var status = (flags & HAS_STATUS) != 0 ? Integer.valueOf(in.readShort()) : null;
+        return new AuditEvent(auditId, method, path, userId, status, time);
+    }
+
+    // reads the records in [from, end) with a time at or after sinceNanos until out holds limit events
+    private static void readRecords(ByteBuffer buffer, int from, int end, long sinceNanos, int limit,
+            List<AuditEvent> out) throws IOException {
+        var offset = from;
+        int length;
+        while (out.size() < limit && (length = recordLength(buffer, offset, end)) > 0) {
+            if (recordTime(buffer, offset) >= sinceNanos) {
+                out.add(decode(buffer, offset, length));
+            }
+            offset += length;
+        }
+    }
+
+    // index of the last entry whose records before it are all older than sinceNanos
+    private static int startIndex(long[] maxBefore, int count, long sinceNanos) {
+        int low = 0, high = count - 1;
+        while (low < high) {
+            var mid = (low + high + 1) >>> 1;
+            if (maxBefore[mid] < sinceNanos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // the segments found on disk in order, the one to append to, and older logs that still need sealing
+    private static record Recovery(List<Segment> segments, ActiveSegment active, List<ActiveSegment> unsealed) {
+    }
+
+    private interface Segment {
+        long sequence();
+
+        long maxNanos();
+
+        void read(long sinceNanos, int limit, List<AuditEvent> out) throws IOException;
+    }
+
+    // Appended to under the sink's lock. Index entry i says that every record before offsets[i] is no newer than
+    // maxBefore[i]; audit times are only roughly in order, so this is a running maximum rather than a sort key.
+    private static final class ActiveSegment implements Segment {
+        final long sequence;
+        final Path path;
+        final MappedByteBuffer buffer;
+        final ReentrantLock indexLock = new ReentrantLock();
+        long[] offsets = new long[64];
+        long[] maxBefore = new long[64];
+        int indexCount;
+        volatile int position;
+        volatile long maxNanos = Long.MIN_VALUE;
+
+        private ActiveSegment(long sequence, Path path, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.buffer = buffer;
+            offsets[0] = 0;
+            maxBefore[0] = Long.MIN_VALUE;
+            indexCount = 1;
+        }
+
+        static ActiveSegment create(Path directory, long sequence, int segmentBytes) throws IOException {
+            var path = directory.resolve(name(sequence, ".log"));
+            return new ActiveSegment(sequence, path, map(path, segmentBytes));
+        }
+
+        static ActiveSegment open(long sequence, Path path, int segmentBytes) throws IOException {
+            var segment = new ActiveSegment(sequence, path, map(path, Math.max(segmentBytes, (int) Files.size(path))));
+            var buffer = segment.buffer;
+            int offset = 0, length;
+            while ((length = recordLength(buffer, offset, buffer.capacity())) > 0) {
+                segment.index(offset, recordTime(buffer, offset));
+                offset += length;
+            }
+            segment.position = offset;
+            // clear a torn write so that nothing after it can be mistaken for a record later
+            buffer.put(offset, new byte[buffer.capacity() - offset]);
+            return segment;
+        }
+
+        private static MappedByteBuffer map(Path path, int size) throws IOException {
+            try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        boolean append(byte[] record, long timeNanos) {
+            var offset = position;
+            if (buffer.capacity() - offset < record.length) {
+                return false;
+            }
+            buffer.put(offset, record);
+            index(offset, timeNanos);
+            position = offset + record.length;
+            return true;
+        }
+
+        private void index(int offset, long timeNanos) {
+            indexLock.lock();
+            try {
+                if (offset - offsets[indexCount - 1] >= INDEX_INTERVAL) {
+                    if (indexCount == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, 2 * indexCount);
+                        maxBefore = Arrays.copyOf(maxBefore, 2 * indexCount);
+                    }
+                    offsets[indexCount] = offset;
+                    maxBefore[indexCount] = maxNanos;
+                    ++indexCount;
+                }
+                if (timeNanos > maxNanos) {
+                    maxNanos = timeNanos;
+                }
+            } finally {
+                indexLock.unlock();
+            }
+        }
+
+        @Override
+        public long sequence() {
+            return sequence;
+        }
+
+        @Override
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public void read(long sinceNanos, int limit, List<AuditEvent> out) throws IOException {
+            int from;
+            int end;
+            indexLock.lock();
+            try {
+                end = position;
+                from = (int) offsets[startIndex(maxBefore, indexCount, sinceNanos)];
+            } finally {
+                indexLock.unlock();
+            }
+            readRecords(buffer.duplicate(), from, end, sinceNanos, limit, out);
+        }
+    }
+
+    // [magic] then blocks of [compressed length][uncompressed length][deflated records], then the block index
+    // and a trailer of [index offset][magic]. Only the index is read when a sealed segment is opened.
+    private static final class SealedSegment implements Segment {
+        final long sequence;
+        final Path path;
+        final long[] offsets;
+        final long[] maxBefore;
+        final long maxNanos;
+
+        SealedSegment(long sequence, Path path, long[] offsets, long[] maxBefore, long maxNanos) {
+            this.sequence = sequence;
+            this.path = path;
+            this.offsets = offsets;
+            this.maxBefore = maxBefore;
+            this.maxNanos = maxNanos;
+        }
+
+        // writes to tempPath a segment that will be found at path
+        static SealedSegment write(ActiveSegment segment, Path tempPath, Path path) throws IOException {
+            var records = segment.buffer.duplicate();
+            var end = segment.position;
+            var offsets = new ArrayList<Long>();
+            var maxBefore = new ArrayList<Long>();
+            var maxNanos = Long.MIN_VALUE;
+            var deflater = new Deflater();
+            var compressed = new byte[BLOCK_SIZE];
+            try (var channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, SEALED_MAGIC));
+                var offset = 0;
+                while (offset < end) {
+                    var blockStart = offset;
+                    var blockMaxBefore = maxNanos;
+                    int length;
+                    while (offset - blockStart < BLOCK_SIZE && (length = recordLength(records, offset, end)) > 0) {
+                        maxNanos = Math.max(maxNanos, recordTime(records, offset));
+                        offset += length;
+                    }
+                    if (offset == blockStart) {
+                        break;
+                    }
+                    offsets.add(channel.position());
+                    maxBefore.add(blockMaxBefore);
+                    var block = new byte[offset - blockStart];
+                    records.get(blockStart, block);
+                    deflater.reset();
+                    deflater.setInput(block);
+                    deflater.finish();
+                    var output = new ByteArrayOutputStream(block.length / 2);
+                    while (!deflater.finished()) {
+                        output.write(compressed, 0, deflater.deflate(compressed));
+                    }
+                    channel.write(ByteBuffer.allocate(8).putInt(0, output.size()).putInt(4, block.length));
+                    channel.write(ByteBuffer.wrap(output.toByteArray()));
+                }
+                var indexOffset = channel.position();
+                var index = ByteBuffer.allocate(4 + 16 * offsets.size() + 8 + 12);
+                index.putInt(offsets.size());
+                for (int i = 0; i < offsets.size(); ++i) {
+                    index.putLong(offsets.get(i)).putLong(maxBefore.get(i));
+                }
+                index.putLong(maxNanos).putLong(indexOffset).putInt(SEALED_MAGIC).flip();
+                channel.write(index);
+                channel.force(true);
+            } finally {
+                deflater.end();
+            }
+            return new SealedSegment(segment.sequence, path, offsets.stream().mapToLong(Long::longValue).toArray(),
+                    maxBefore.stream().mapToLong(Long::longValue).toArray(), maxNanos);
+        }
+
+        static SealedSegment open(long sequence, Path path) throws IOException {
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                var trailer = read(channel, channel.size() - 12, 12);
+                var indexOffset = trailer.getLong();
+                if (trailer.getInt() != SEALED_MAGIC) {
+                    throw new IOException("not a sealed audit segment: " + path);
+                }
+                var index = read(channel, indexOffset, (int) (channel.size() - 12 - indexOffset));
+                var count = index.getInt();
+                var offsets = new long[count];
+                var maxBefore = new long[count];
+                for (int i = 0; i < count; ++i) {
+                    offsets[i] = index.getLong();
+                    maxBefore[i] = index.getLong();
+                }
+                return new SealedSegment(sequence, path, offsets, maxBefore, index.getLong());
+            }
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+            var buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("truncated audit segment");
+                }
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public long sequence() {
+            return sequence;
+        }
+
+        @Override
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public void read(long sinceNanos, int limit, List<AuditEvent> out) throws IOException {
+            if (offsets.length == 0) {
+                return;
+            }
+            var inflater = new Inflater();
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                for (int i = startIndex(maxBefore, offsets.length, sinceNanos); i < offsets.length; ++i) {
+                    var header = read(channel, offsets[i], 8);
+                    var compressed = read(channel, offsets[i] + 8, header.getInt());
+                    var block = ByteBuffer.allocate(header.getInt());
+                    inflater.reset();
+                    inflater.setInput(compressed);
+                    inflater.inflate(block);
+                    readRecords(block, 0, block.capacity(), sinceNanos, limit, out);
+                    if (out.size() >= limit) {
+                        return;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt audit segment " + path, e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -1,20 +1,24 @@
 package com.manning.apisecurityinaction.controller;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.function.BooleanSupplier;
 
 import com.manning.apisecurityinaction.token.Capability;
-import com.manning.apisecurityinaction.token.SecureTokenStore;
+import com.manning.apisecurityinaction.token.AuthenticatedTokenStore;
 
 import spark.Filter;
 import spark.Request;
 import spark.Response;
 
+import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
 import static spark.Spark.halt;
 import static java.text.MessageFormat.format;
 
-public record CapabilityController(SecureTokenStore<Capability> tokenStore) {
+public record CapabilityController(AuthenticatedTokenStore<Capability> tokenStore) {
     public URI createUri(Request request, String path, EnumSet<Permission> perms) {
         var token = new Capability(path, perms);
 
@@ -24,18 +28,47 @@ public record CapabilityController(SecureTokenStore<Capability> tokenStore) {
         return uri.resolve(format("{0}?access_token={1}", path, tokenId));
     }
 
+    public List<URI> createAll(Request request, List<Capability> tokens) {
+        var tokenIds = tokenStore.createAll(request, tokens);
+
+        var uri = URI.create(request.uri());
+        var uris = new ArrayList<URI>(tokens.size());
+        for (int i = 0; i < tokens.size(); ++i) {
+            uris.add(uri.resolve(tokens.get(i).path() + "?access_token=" + tokenIds.get(i)));
+        }
+        return uris;
+    }
+
     public void lookupPermissions(Request request, Response response) {
+        lookupPermissions(request, request.pathInfo());
+    }
+
+    // for actions such as /spaces/1/messages/batch that are authorized by the capability for the parent path
+    public void lookupParentPermissions(Request request, Response response) {
+        var path = request.pathInfo();
+        lookupPermissions(request, path.substring(0, path.lastIndexOf('/')));
+    }
+
+    private void lookupPermissions(Request request, String path) {
         var tokenId = request.queryParams("access_token");
         if (tokenId == null) {
             return;
         }
         tokenStore.read(request, tokenId).ifPresent(token -> {
-            if (Objects.equals(token.path(), request.pathInfo())) {
+            if (Objects.equals(token.path(), path)) {
                 request.attribute("perms", token.perms());
+                request.attribute("capability", token);
             }
         });
     }
 
+    // for responses that outlive their request, such as event streams: stays true only while the capability that
+    // lookupPermissions found still reads back unchanged, so it turns false once that is expired or revoked
+    public BooleanSupplier stillValid(Request request, Capability capability) {
+        var tokenId = castNonNull(request.queryParams("access_token"), "lookupPermissions read it");
+        return () -> tokenStore.read(request, tokenId).filter(capability::equals).isPresent();
+    }
+
     public Filter requirePermission(String method, EnumSet<Permission> permsNeeded) {
         return (request, response) -> {
             if (!method.equalsIgnoreCase(request.requestMethod())) {
@@ -0,0 +1,163 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import spark.Request;
+import spark.Response;
+
+import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
+
+// Adaptive limit on requests in flight, applied before the rest of the filter chain. Every window the limit
+// follows the gradient between the long-run and the recent mean request latency: when recent requests are slower
+// than usual, something downstream such as the connection pool or scrypt is queueing and the limit shrinks,
+// otherwise it grows by about sqrt(limit). Each priority may only fill a share of the limit, so that as the limit
+// shrinks the lowest priority is shed first. Shed requests fail with RejectedExecutionException, which is a 503.
+public final class ConcurrencyLimiter {
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    // recent latency may exceed the long-run mean by this factor before the limit shrinks
+    private static final double TOLERANCE = 1.5d;
+    private static final double SMOOTHING = 0.2d;
+    private static final double LONG_RTT_WEIGHT = 0.05d;
+
+    public enum Priority {
+        // scrypt-backed requests, such as password logins and registration
+        LOW(0.5d),
+        NORMAL(0.8d),
+        // capability-only reads
+        HIGH(1.0d);
+
+        final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final RouteTable<Priority> routes = new RouteTable<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<Priority, AtomicLong> rejectedCounts = new EnumMap<>(Priority.class);
+    private final LongAdder windowNanos = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long windowStart = System.nanoTime();
+    private volatile double limit;
+    // guarded by lock
+    private double longRtt;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        for (var priority : Priority.values()) {
+            rejectedCounts.put(priority, new AtomicLong());
+        }
+    }
+
+    // the first matching route wins; requests with Basic credentials are LOW before any route is consulted, and
+    // anything unmatched is HIGH for GET and NORMAL otherwise
+    public ConcurrencyLimiter route(String method, String path, Priority priority) {
+        routes.add(method, path, priority);
+        return this;
+    }
+
+    public void acquire(Request request, Response response) {
+        var priority = priorityOf(request);
+        var allowed = Math.max(1, (int) (limit * priority.share));
+        while (true) {
+            var current = inFlight.get();
+            if (current >= allowed) {
+                castNonNull(rejectedCounts.get(priority), "every priority has a count").incrementAndGet();
+                throw new RejectedExecutionException("over the concurrency limit");
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                windowMaxInFlight.accumulateAndGet(current + 1, Math::max);
+                break;
+            }
+        }
+        request.attribute("concurrency_start", System.nanoTime());
+    }
+
+    // runs as afterAfter, so that the sample covers every filter and the handler
+    public void release(Request request, Response response) {
+        @Nullable Long start = request.attribute("concurrency_start");
+        if (start == null) {
+            return;
+        }
+        request.raw().removeAttribute("concurrency_start");
+        inFlight.decrementAndGet();
+        var now = System.nanoTime();
+        windowNanos.add(now - start);
+        windowSamples.increment();
+        if (now - windowStart >= WINDOW_NANOS && lock.tryLock()) {
+            try {
+                if (now - windowStart >= WINDOW_NANOS) {
+                    update(now);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public double limit() {
+        return limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public long rejectedCount(Priority priority) {
+        return castNonNull(rejectedCounts.get(priority), "every priority has a count").get();
+    }
+
+    private void update(long now) {
+        // a quiet window carries over so that the mean is never taken over a handful of samples
+        if (windowSamples.sum() < MIN_WINDOW_SAMPLES) {
+            return;
+        }
+        var samples = windowSamples.sumThenReset();
+        var shortRtt = (double) windowNanos.sumThenReset() / samples;
+        var maxInFlight = windowMaxInFlight.getAndSet(inFlight.get());
+        windowStart = now;
+
+        longRtt = longRtt == 0 ? shortRtt : longRtt * (1 - LONG_RTT_WEIGHT) + shortRtt * LONG_RTT_WEIGHT;
+        // once load has gone, forget the slow period quickly rather than over the next hundred windows
+        if (longRtt > 2 * shortRtt) {
+            longRtt *= 0.95d;
+        }
+        var gradient = Math.max(0.5d, Math.min(1.0d, TOLERANCE * longRtt / shortRtt));
+        var current = limit;
+        var target = current * gradient + Math.sqrt(current);
+        // fast latency while well under the limit says nothing about how much more we could take
+        if (target > current && maxInFlight < current / 2) {
+            target = current;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, current * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    private Priority priorityOf(Request request) {
+        var authorization = request.headers("Authorization");
+        if (authorization != null && authorization.startsWith("Basic ")) {
+            return Priority.LOW;
+        }
+        var priority = routes.find(request);
+        if (priority != null) {
+            return priority;
+        }
+        return request.requestMethod().equals("GET") ? Priority.HIGH : Priority.NORMAL;
+    }
+}
@@ -0,0 +1,52 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.manning.apisecurityinaction.json.JsonWriter;
+
+public final class MessageCache {
+    private static final Entry DELETED = new Entry(-1, new byte[0]);
+
+    private final Cache<Long, Entry> cache;
+
+    public MessageCache(long maximumBytes) {
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maximumBytes)
+                .<Long, Entry>weigher((msgId, entry) -> entry.json().length + 64).recordStats().build();
+    }
+
+    public Optional<byte[]> get(long spaceId, long msgId, Supplier<SpaceController.Message> loader) {
+        var entry = cache.getIfPresent(msgId);
+        if (entry == null) {
+            var message = loader.get();
+            entry = new Entry(message.spaceId(), JsonWriter.toBytes(message));
+            // never overwrite a tombstone left by a concurrent delete
+            var existing = cache.asMap().putIfAbsent(msgId, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        if (entry == DELETED || entry.spaceId() != spaceId) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.json());
+    }
+
+    public void markDeleted(long msgId) {
+        cache.put(msgId, DELETED);
+    }
+
+    public void invalidate(long msgId) {
+        cache.invalidate(msgId);
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static record Entry(long spaceId, byte[] json) {
+    }
+}
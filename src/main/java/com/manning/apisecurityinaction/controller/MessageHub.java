@@ -0,0 +1,284 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import spark.Request;
+import spark.Response;
+
+// Fans out new message URIs to Server-Sent Events subscribers of each space. Subscribers are parked async
+// requests written with non-blocking I/O, so an idle subscriber costs a queue and no thread. A subscriber
+// that falls more than bufferSize events behind is disconnected and can catch up by listing messages. A stream
+// ends when the capability it was opened with expires, or at the next check after it is revoked, so that the
+// client has to reconnect and be authorized again.
+public final class MessageHub {
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final Map<Long, Set<Subscriber>> spaces = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicLong slowConsumerCount = new AtomicLong();
+    private final ExecutorService fanOut;
+    private final ScheduledThreadPoolExecutor heartbeat;
+
+    public MessageHub(int bufferSize, int maxSubscribers, Duration heartbeatInterval, Duration recheckInterval) {
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+        this.fanOut = Executors.newFixedThreadPool(2,
+                new ThreadFactoryBuilder().setNameFormat("message-hub-%d").setDaemon(true).build());
+        this.heartbeat = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("message-hub-heartbeat").setDaemon(true).build());
+        // otherwise every stream closed early would keep its expiry task until the capability expires
+        heartbeat.setRemoveOnCancelPolicy(true);
+        // heartbeats keep proxies from timing out idle streams and surface dead connections as write errors
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeats, heartbeatInterval.toMillis(),
+                heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+        heartbeat.scheduleWithFixedDelay(this::recheckSubscribers, recheckInterval.toMillis(),
+                recheckInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public static boolean acceptsEventStream(Request request) {
+        var accept = request.headers("Accept");
+        return accept != null && accept.contains("text/event-stream");
+    }
+
+    // authorized is called now and then from another thread and must turn false once the capability that the
+    // request was authorized with has been revoked
+    public String subscribe(Request request, Response response, @Nullable Instant expiry,
+            BooleanSupplier authorized) throws IOException {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new RejectedExecutionException("too many subscribers");
+        }
+
+        Subscriber subscriber;
+        try {
+            response.status(200);
+            response.raw().setContentType("text/event-stream;charset=utf-8");
+            response.header("X-Accel-Buffering", "no");
+            // commit the headers while still blocking so that Spark leaves the response alone when this returns
+            response.raw().getOutputStream().write("retry: 5000\n\n".getBytes(StandardCharsets.UTF_8));
+            response.raw().flushBuffer();
+
+            var async = request.raw().startAsync();
+            async.setTimeout(0);
+            subscriber = new Subscriber(spaceId, async, response.raw().getOutputStream(), authorized);
+        } catch (IOException | RuntimeException e) {
+            // typically the client has already gone
+            subscriberCount.decrementAndGet();
+            throw e;
+        }
+        try {
+            subscriber.async.addListener(subscriber);
+            subscriber.out.setWriteListener(subscriber);
+        } catch (RuntimeException e) {
+            // from here on close gives back the slot, once only
+            subscriber.close();
+            throw e;
+        }
+        spaces.compute(spaceId, (id, subscribers) -> {
+            var result = subscribers == null ? ConcurrentHashMap.<Subscriber>newKeySet() : subscribers;
+            result.add(subscriber);
+            return result;
+        });
+        if (expiry != null) {
+            subscriber.expiryTask = heartbeat.schedule(subscriber::close,
+                    Math.max(0, Duration.between(Instant.now(), expiry).toMillis()), TimeUnit.MILLISECONDS);
+        }
+        // the connection may already have failed before it was registered
+        if (subscriber.closed.get()) {
+            unregister(subscriber);
+            subscriber.cancelExpiry();
+        }
+        return "";
+    }
+
+    public void publish(long spaceId, long msgId, URI messageUri) {
+        var subscribers = spaces.get(spaceId);
+        if (subscribers == null) {
+            return;
+        }
+        var event = ("id: " + msgId + "\nevent: message\ndata: " + messageUri.toASCIIString() + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+        fanOut.execute(() -> {
+            for (var subscriber : subscribers) {
+                subscriber.offer(event);
+            }
+        });
+    }
+
+    public int subscriberCount() {
+        return subscriberCount.get();
+    }
+
+    public long slowConsumerCount() {
+        return slowConsumerCount.get();
+    }
+
+    private void sendHeartbeats() {
+        for (var subscribers : spaces.values()) {
+            for (var subscriber : subscribers) {
+                subscriber.offer(HEARTBEAT);
+            }
+        }
+    }
+
+    // a recheck may query the database, so it runs on the heartbeat thread rather than delaying the fan-out
+    private void recheckSubscribers() {
+        for (var subscribers : spaces.values()) {
+            for (var subscriber : subscribers) {
+                boolean stillAuthorized;
+                try {
+                    stillAuthorized = subscriber.authorized.getAsBoolean();
+                } catch (RuntimeException e) {
+                    // fail closed; the client can reconnect once the store is back
+                    stillAuthorized = false;
+                }
+                if (!stillAuthorized) {
+                    subscriber.close();
+                }
+            }
+        }
+    }
+
+    // computeIfPresent removes the entry when the function returns null, which the checker's JDK does not allow
+    @SuppressWarnings("nullness:return")
+    private void unregister(Subscriber subscriber) {
+        spaces.computeIfPresent(subscriber.spaceId, (id, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    private final class Subscriber implements WriteListener, AsyncListener {
+        final long spaceId;
+        final AsyncContext async;
+        final ServletOutputStream out;
+        final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger wip = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final BooleanSupplier authorized;
+        volatile @Nullable ScheduledFuture<?> expiryTask;
+
+        Subscriber(long spaceId, AsyncContext async, ServletOutputStream out, BooleanSupplier authorized) {
+            this.spaceId = spaceId;
+            this.async = async;
+            this.out = out;
+            this.authorized = authorized;
+        }
+
+        void offer(byte[] event) {
+            if (closed.get()) {
+                return;
+            }
+            if (queued.incrementAndGet() > bufferSize) {
+                slowConsumerCount.incrementAndGet();
+                close();
+                return;
+            }
+            queue.add(event);
+            drain();
+        }
+
+        // only one thread writes at a time; a signal that arrives mid-drain makes the writer loop again
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                try {
+                    while (!closed.get() && out.isReady()) {
+                        var event = queue.poll();
+                        if (event == null) {
+                            out.flush();
+                            break;
+                        }
+                        queued.decrementAndGet();
+                        out.write(event);
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    close();
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                unregister(this);
+                cancelExpiry();
+                subscriberCount.decrementAndGet();
+                try {
+                    async.complete();
+                } catch (IllegalStateException e) {
+                    // already completed by the container
+                }
+            }
+        }
+
+        void cancelExpiry() {
+            var task = expiryTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -1,19 +1,35 @@
 package com.manning.apisecurityinaction.controller;
 
+import com.manning.apisecurityinaction.json.JsonResponse;
+import com.manning.apisecurityinaction.token.PathRevoker;
+
 import org.dalesbred.Database;
-import org.json.JSONObject;
 
 import spark.Request;
 import spark.Response;
 
-public record ModeratorController(Database database) {
-    public JSONObject deletePost(Request request, Response response) {
+public record ModeratorController(Database database, MessageCache messageCache,
+        RecentMessageIndex recentMessages, SpaceVersions spaceVersions,
+        PathRevoker capabilities) {
+    public JsonResponse deletePost(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var msgId = Long.parseLong(request.params(":msgId"));
 
-        database.updateUnique("DELETE FROM messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+        messageCache.markDeleted(msgId);
+        try {
+            database.withVoidTransaction(tx -> {
+                database.updateUnique("DELETE FROM messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+                // every capability minted for the message is now useless
+                capabilities.revokePath("/spaces/" + spaceId + "/messages/" + msgId);
+            });
+        } catch (RuntimeException e) {
+            messageCache.invalidate(msgId);
+            throw e;
+        }
+        recentMessages.remove(spaceId, msgId);
+        spaceVersions.bump(spaceId);
 
         response.status(200);
-        return new JSONObject();
+        return JsonResponse.EMPTY_OBJECT;
     }
 }
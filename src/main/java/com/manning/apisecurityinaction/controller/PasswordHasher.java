@@ -0,0 +1,111 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.lambdaworks.crypto.SCryptUtil;
+
+public final class PasswordHasher {
+    private final ThreadPoolExecutor executor;
+    private final Cache<String, Verified> verified;
+    private final Key cacheKey;
+
+    public PasswordHasher(int threads, int queueLimit, Duration cacheTtl, SecureRandom rng) {
+        // fails fast with RejectedExecutionException once the queue is full
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit),
+                new ThreadFactoryBuilder().setNameFormat("scrypt-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.verified = CacheBuilder.newBuilder().maximumSize(10_000).expireAfterWrite(cacheTtl).recordStats()
+                .build();
+
+        var keyBytes = new byte[32];
+        rng.nextBytes(keyBytes);
+        this.cacheKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+    }
+
+    public String hash(String password) {
+        return await(executor.submit(() -> SCryptUtil.scrypt(password, 32768, 8, 1)));
+    }
+
+    public boolean check(String username, String password, String hash) {
+        var digest = credentialDigest(username, password, hash);
+
+        var entry = verified.getIfPresent(username);
+        if (entry != null) {
+            if (entry.hash().equals(hash) && MessageDigest.isEqual(entry.digest(), digest)) {
+                return true;
+            }
+            if (!entry.hash().equals(hash)) {
+                verified.invalidate(username);
+            }
+        }
+
+        boolean valid = await(executor.submit(() -> SCryptUtil.check(password, hash)));
+        if (valid) {
+            verified.put(username, new Verified(hash, digest));
+        }
+        return valid;
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+
+    public CacheStats stats() {
+        return verified.stats();
+    }
+
+    // rethrows what the task threw, so that e.g. SCryptUtil's IllegalArgumentException for a malformed hash is
+    // still a 400 rather than a 500
+    private static <T> T await(Future<T> future) {
+        try {
+            return Futures.getUnchecked(future);
+        } catch (UncheckedExecutionException e) {
+            var cause = e.getCause();
+            if (cause != null) {
+                Throwables.throwIfUnchecked(cause);
+            }
+            throw e;
+        }
+    }
+
+    private byte[] credentialDigest(String username, String password, String hash) {
+        try {
+            var mac = Mac.getInstance(cacheKey.getAlgorithm());
+            mac.init(cacheKey);
+            for (var part : new String[] { username, password, hash }) {
+                mac.update(part.getBytes(StandardCharsets.UTF_8));
+                mac.update((byte) 0);
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static record Verified(String hash, byte[] digest) {
+    }
+}
@@ -18,4 +18,22 @@ public enum Permission {
         }
         return perms;
     }
+
+    public static int toBits(EnumSet<Permission> perms) {
+        var bits = 0;
+        for (var perm : perms) {
+            bits |= 1 << perm.ordinal();
+        }
+        return bits;
+    }
+
+    public static EnumSet<Permission> fromBits(int bits) {
+        var perms = EnumSet.noneOf(Permission.class);
+        for (var perm : values()) {
+            if ((bits & (1 << perm.ordinal())) != 0) {
+                perms.add(perm);
+            }
+        }
+        return perms;
+    }
 }
\ No newline at end of file
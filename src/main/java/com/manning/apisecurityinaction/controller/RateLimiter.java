@@ -0,0 +1,87 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import spark.Request;
+import spark.Response;
+
+import static spark.Spark.halt;
+
+public final class RateLimiter {
+    private static final long MAX_KEYS_PER_LIMIT = 1_000_000;
+
+    private final double scale;
+    private final Limit defaultLimit;
+    private final RouteTable<Limit> routes = new RouteTable<>();
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, 1.0d);
+    }
+
+    // scale multiplies every rate and burst, e.g. to lift the limits for load testing
+    public RateLimiter(double permitsPerSecond, int burst, double scale) {
+        this.scale = scale;
+        this.defaultLimit = new Limit(permitsPerSecond * scale, (int) Math.ceil(burst * scale));
+    }
+
+    public RateLimiter route(String method, String path, double permitsPerSecond, int burst) {
+        routes.add(method, path, new Limit(permitsPerSecond * scale, (int) Math.ceil(burst * scale)));
+        return this;
+    }
+
+    public void enforce(Request request, Response response) {
+        var waitNanos = limitFor(request).tryAcquire(principal(request));
+        if (waitNanos > 0) {
+            var retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+            response.header("Retry-After", Long.toString(retryAfter));
+            halt(429);
+        }
+    }
+
+    private Limit limitFor(Request request) {
+        var limit = routes.find(request);
+        return limit != null ? limit : defaultLimit;
+    }
+
+    private static String principal(Request request) {
+        @Nullable String subject = request.attribute("subject");
+        return subject != null ? "user:" + subject : "ip:" + request.ip();
+    }
+
+    // Generic cell rate algorithm: each bucket is a single theoretical arrival time updated by CAS.
+    private static final class Limit {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final Cache<String, AtomicLong> buckets;
+
+        Limit(double permitsPerSecond, int burst) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.toleranceNanos = intervalNanos * (burst - 1);
+            // a bucket left idle for a full refill is indistinguishable from a new one
+            this.buckets = CacheBuilder.newBuilder().maximumSize(MAX_KEYS_PER_LIMIT)
+                    .concurrencyLevel(4 * Runtime.getRuntime().availableProcessors())
+                    .expireAfterAccess(toleranceNanos + intervalNanos, TimeUnit.NANOSECONDS).build();
+        }
+
+        long tryAcquire(String key) {
+            var now = System.nanoTime();
+            var bucket = buckets.asMap().computeIfAbsent(key, k -> new AtomicLong(now));
+            while (true) {
+                var arrival = bucket.get();
+                var wait = arrival - toleranceNanos - now;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (bucket.compareAndSet(arrival, Math.max(arrival, now) + intervalNanos)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
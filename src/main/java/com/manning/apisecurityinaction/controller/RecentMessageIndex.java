@@ -0,0 +1,280 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.manning.apisecurityinaction.controller.SpaceController.MessageKey;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// Keeps the (msg_time, msg_id) keys of each space's newest messages so that findMessages can page through them
+// without querying H2. Each space gets a sorted ring of at most bytesPerSpace / 16 keys, loaded on first use, and
+// the least recently used spaces are dropped beyond maxSpaces. A ring remembers the key below which it may be
+// missing messages and answers only the pages that lie wholly above it.
+public final class RecentMessageIndex {
+    private static final int STRIPES = 64;
+    // findMessages computes its default since a moment before the index computes the window start
+    private static final Duration GRACE = Duration.ofMinutes(1);
+
+    private final int maxEntries;
+    private final Duration window;
+    private final Cache<Long, Ring> spaces;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // bumped by every write so that a load that raced with one is not installed, guarded by the stripe's lock
+    private final long[] versions = new long[STRIPES];
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    public RecentMessageIndex(int bytesPerSpace, long maxSpaces, Duration window) {
+        this.maxEntries = Math.max(1, bytesPerSpace / 16);
+        this.window = window;
+        this.spaces = CacheBuilder.newBuilder().maximumSize(maxSpaces).build();
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // returns up to limit keys at or after since and after the cursor in ascending order, or null when the
+    // caller must query the database instead
+    public @Nullable List<MessageKey> find(long spaceId, Instant since, MessageKey after, int limit, Loader loader) {
+        var stripe = stripe(spaceId);
+        var lock = locks[stripe];
+        long version;
+        lock.lock();
+        try {
+            var ring = spaces.getIfPresent(spaceId);
+            if (ring != null) {
+                var keys = ring.find(nanos(since), nanos(after.time()), after.msgId(), limit);
+                (keys == null ? fallbackCount : hitCount).incrementAndGet();
+                return keys;
+            }
+            version = versions[stripe];
+        } finally {
+            lock.unlock();
+        }
+
+        var windowStart = Instant.now().minus(window);
+        if (since.isBefore(windowStart.minus(GRACE))) {
+            fallbackCount.incrementAndGet();
+            return null;
+        }
+        if (since.isBefore(windowStart)) {
+            windowStart = since;
+        }
+        // newest first, with one extra row to tell whether the ring holds everything since windowStart
+        var rows = loader.load(spaceId, windowStart, maxEntries + 1);
+        var ring = new Ring(Math.min(maxEntries, Math.max(16, rows.size())));
+        if (rows.size() > maxEntries) {
+            var oldest = rows.get(maxEntries);
+            ring.fromTime = nanos(oldest.time());
+            ring.fromId = oldest.msgId();
+        } else {
+            ring.fromTime = nanos(windowStart);
+            ring.fromId = Long.MIN_VALUE;
+        }
+        for (int i = Math.min(rows.size(), maxEntries) - 1; i >= 0; --i) {
+            var row = rows.get(i);
+            ring.add(nanos(row.time()), row.msgId());
+        }
+
+        fallbackCount.incrementAndGet();
+        lock.lock();
+        try {
+            if (versions[stripe] == version) {
+                spaces.asMap().putIfAbsent(spaceId, ring);
+            }
+            // once installed the ring is shared with writers, so it is only read under the lock
+            return ring.find(nanos(since), nanos(after.time()), after.msgId(), limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // call after the message has been committed
+    public void add(long spaceId, Instant time, long msgId) {
+        var stripe = stripe(spaceId);
+        locks[stripe].lock();
+        try {
+            versions[stripe]++;
+            var ring = spaces.getIfPresent(spaceId);
+            if (ring != null) {
+                ring.add(nanos(time), msgId);
+            }
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    // call after the delete has been committed
+    public void remove(long spaceId, long msgId) {
+        var stripe = stripe(spaceId);
+        locks[stripe].lock();
+        try {
+            versions[stripe]++;
+            var ring = spaces.getIfPresent(spaceId);
+            if (ring != null) {
+                ring.remove(msgId);
+            }
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    public long fallbackCount() {
+        return fallbackCount.get();
+    }
+
+    public long spaceCount() {
+        return spaces.size();
+    }
+
+    private static int stripe(long spaceId) {
+        return (int) (spaceId ^ (spaceId >>> 32)) & (STRIPES - 1);
+    }
+
+    // saturates so that absurd since parameters still compare correctly
+    private static long nanos(Instant instant) {
+        var seconds = instant.getEpochSecond();
+        if (seconds >= Long.MAX_VALUE / 1_000_000_000L) {
+            return Long.MAX_VALUE;
+        }
+        if (seconds <= Long.MIN_VALUE / 1_000_000_000L) {
+            return Long.MIN_VALUE;
+        }
+        return seconds * 1_000_000_000L + instant.getNano();
+    }
+
+    private static Instant instant(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+        // the newest count keys with msg_time at or after since, newest first
+        List<MessageKey> load(long spaceId, Instant since, int count);
+    }
+
+    // Sorted circular buffer of (time, id) pairs interleaved in one array. New messages almost always sort last,
+    // so inserts rarely shift more than a few pairs.
+    private final class Ring {
+        long[] keys;
+        int head;
+        int size;
+        // every message with a key above this one is in the ring
+        long fromTime;
+        long fromId;
+
+        Ring(int capacity) {
+            this.keys = new long[2 * capacity];
+        }
+
+        int capacity() {
+            return keys.length / 2;
+        }
+
+        long time(int i) {
+            return keys[2 * ((head + i) % capacity())];
+        }
+
+        long id(int i) {
+            return keys[2 * ((head + i) % capacity()) + 1];
+        }
+
+        void set(int i, long time, long id) {
+            var slot = 2 * ((head + i) % capacity());
+            keys[slot] = time;
+            keys[slot + 1] = id;
+        }
+
+        void add(long time, long id) {
+            if (compare(time, id, fromTime, fromId) <= 0) {
+                return;
+            }
+            if (size == capacity()) {
+                if (size < maxEntries) {
+                    grow();
+                } else {
+                    // whichever of the oldest and the new key sorts lower becomes the new bound
+                    if (compare(time, id, time(0), id(0)) < 0) {
+                        fromTime = time;
+                        fromId = id;
+                        return;
+                    }
+                    fromTime = time(0);
+                    fromId = id(0);
+                    head = (head + 1) % capacity();
+                    --size;
+                }
+            }
+            var i = size;
+            while (i > 0 && compare(time(i - 1), id(i - 1), time, id) > 0) {
+                set(i, time(i - 1), id(i - 1));
+                --i;
+            }
+            set(i, time, id);
+            ++size;
+        }
+
+        void remove(long id) {
+            for (int i = size - 1; i >= 0; --i) {
+                if (id(i) == id) {
+                    for (int j = i; j < size - 1; ++j) {
+                        set(j, time(j + 1), id(j + 1));
+                    }
+                    --size;
+                    return;
+                }
+            }
+        }
+
+        @Nullable List<MessageKey> find(long since, long afterTime, long afterId, int limit) {
+            // matching keys form a suffix, so if the bound itself would match then older ones might be missing
+            if (matches(fromTime, fromId, since, afterTime, afterId)) {
+                return null;
+            }
+            int low = 0, high = size;
+            while (low < high) {
+                var mid = (low + high) >>> 1;
+                if (matches(time(mid), id(mid), since, afterTime, afterId)) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            var result = new ArrayList<MessageKey>(Math.min(limit, size - low));
+            for (int i = low; i < size && result.size() < limit; ++i) {
+                result.add(new MessageKey(instant(time(i)), id(i)));
+            }
+            return result;
+        }
+
+        private void grow() {
+            var grown = new long[2 * Math.min(maxEntries, 2 * capacity())];
+            for (int i = 0; i < size; ++i) {
+                grown[2 * i] = time(i);
+                grown[2 * i + 1] = id(i);
+            }
+            keys = grown;
+            head = 0;
+        }
+
+        private static boolean matches(long time, long id, long since, long afterTime, long afterId) {
+            return time >= since && compare(time, id, afterTime, afterId) > 0;
+        }
+
+        private static int compare(long time, long id, long otherTime, long otherId) {
+            var result = Long.compare(time, otherTime);
+            return result != 0 ? result : Long.compare(id, otherId);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import spark.Request;
+
+// Maps Spark-style routes such as /spaces/:spaceId/messages to a value. Segments starting with a colon match any
+// single segment, and the first route added that matches a request wins.
+final class RouteTable<T> {
+    private final List<Route<T>> routes = new ArrayList<>();
+
+    void add(String method, String path, T value) {
+        routes.add(new Route<>(method, path.split("/"), value));
+    }
+
+    @Nullable T find(Request request) {
+        var segments = request.pathInfo().split("/");
+        for (var route : routes) {
+            if (route.matches(request.requestMethod(), segments)) {
+                return route.value();
+            }
+        }
+        return null;
+    }
+
+    private static record Route<T>(String method, String[] pattern, T value) {
+        boolean matches(String requestMethod, String[] segments) {
+            if (!method.equalsIgnoreCase(requestMethod) || pattern.length != segments.length) {
+                return false;
+            }
+            for (int i = 0; i < pattern.length; ++i) {
+                if (!pattern[i].startsWith(":") && !pattern[i].equals(segments[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
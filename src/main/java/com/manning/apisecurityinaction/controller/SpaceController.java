@@ -1,10 +1,25 @@
 package com.manning.apisecurityinaction.controller;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.stream.Collectors;
 
+import com.manning.apisecurityinaction.json.JsonResponse;
+import com.manning.apisecurityinaction.json.JsonWriter;
+import com.manning.apisecurityinaction.token.Base64Url;
+import com.manning.apisecurityinaction.token.Capability;
+
 import org.dalesbred.Database;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -13,11 +28,25 @@ import spark.Request;
 import spark.Response;
 
 import static java.text.MessageFormat.format;
+import static spark.Spark.halt;
 import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
 
-public record SpaceController(Database database, CapabilityController capabilityController) {
+// capabilities minted by findMessages expire after messageCapabilityLifetime so that they can be swept
+public record SpaceController(Database database, CapabilityController capabilityController,
+        MessageCache messageCache, MessageHub messageHub, RecentMessageIndex recentMessages,
+        SpaceVersions spaceVersions, Duration messageCapabilityLifetime) {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int CAPABILITY_BATCH_SIZE = 100;
+    private static final int MAX_POST_BATCH_SIZE = 100;
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO messages(space_id, msg_id, author, msg_time, msg_text) VALUES(?, ?, ?, ?, ?);";
+    private static final JsonWriter.Shape SPACE = new JsonWriter.Shape("name", "uri", "messages-rwd", "messages-rw",
+            "messages-r");
+    private static final JsonWriter.Shape POSTED_MESSAGE = new JsonWriter.Shape("uri", "uri-ro");
+    private static final JsonWriter.Shape MESSAGE = new JsonWriter.Shape("uri", "author", "time", "message");
 
-    public JSONObject createSpace(Request request, Response response) {
+    public JsonResponse createSpace(Request request, Response response) {
         var json = new JSONObject(request.body());
         var spaceName = json.getString("name");
         if (spaceName.length() > 255) {
@@ -32,24 +61,28 @@ public record SpaceController(Database database, CapabilityController capability
             database.updateUnique("INSERT INTO spaces(space_id, name, owner) VALUES(?, ?, ?);", spaceId, spaceName,
                     owner);
 
-            var uri = capabilityController.createUri(request, "/spaces/" + spaceId,
-                    EnumSet.of(Permission.Read, Permission.Write, Permission.Delete));
-            var messagesUri = capabilityController.createUri(request, format("/spaces/{0}/messages", spaceId),
-                    EnumSet.of(Permission.Read, Permission.Write, Permission.Delete));
-            var messagesRwUri = capabilityController.createUri(request, format("/spaces/{0}/messages", spaceId),
-                    EnumSet.of(Permission.Read, Permission.Write));
-            var messagesRoUri = capabilityController.createUri(request, format("/spaces/{0}/messages", spaceId),
-                    EnumSet.of(Permission.Read));
+            // capability paths are concatenated because MessageFormat would add grouping separators to ids over
+            // 999, and then neither request paths nor revokePath would match them
+            var messagesPath = "/spaces/" + spaceId + "/messages";
+            var uris = capabilityController.createAll(request, List.of(
+                    new Capability("/spaces/" + spaceId,
+                            EnumSet.of(Permission.Read, Permission.Write, Permission.Delete)),
+                    new Capability(messagesPath, EnumSet.of(Permission.Read, Permission.Write, Permission.Delete)),
+                    new Capability(messagesPath, EnumSet.of(Permission.Read, Permission.Write)),
+                    new Capability(messagesPath, EnumSet.of(Permission.Read))));
+            var uri = uris.get(0);
+            var messagesUri = uris.get(1);
+            var messagesRwUri = uris.get(2);
+            var messagesRoUri = uris.get(3);
 
             response.status(201);
             response.header("Location", uri.toASCIIString());
 
-            return new JSONObject().put("name", spaceName).put("uri", uri).put("messages-rwd", messagesUri)
-                    .put("messages-rw", messagesRwUri).put("messages-r", messagesRoUri);
+            return (JsonResponse) out -> out.object(SPACE, spaceName, uri, messagesUri, messagesRwUri, messagesRoUri);
         });
     }
 
-    public JSONObject postMessage(Request request, Response response) {
+    public JsonResponse postMessage(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         String author = castNonNull(request.attribute("subject"), "nonnull since authenticated");
         var json = new JSONObject(request.body());
@@ -58,61 +91,221 @@ public record SpaceController(Database database, CapabilityController capability
             throw new IllegalArgumentException("message text too long");
         }
 
-        return database.withTransaction(tx -> {
+        // H2 keeps microseconds, and the index must hold the same time as the row
+        var time = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        var posted = database.withTransaction(tx -> {
             var msgId = database.findUniqueLong("SELECT NEXT VALUE FOR msg_id_seq;");
 
-            database.updateUnique(
-                    "INSERT INTO messages(space_id, msg_id, author, msg_time, msg_text) VALUES(?, ?, ?, current_timestamp, ?);",
-                    spaceId, msgId, author, message);
+            database.updateUnique(INSERT_MESSAGE, spaceId, msgId, author, time, message);
 
-            var uri = capabilityController.createUri(request, format("/spaces/{0}/messages/{1}", spaceId, msgId),
+            var path = "/spaces/" + spaceId + "/messages/" + msgId;
+            var uri = capabilityController.createUri(request, path,
                     EnumSet.of(Permission.Read, Permission.Write, Permission.Delete));
-            var roUri = capabilityController.createUri(request, format("/spaces/{0}/messages/{1}", spaceId, msgId),
-                    EnumSet.of(Permission.Read));
+            var roUri = capabilityController.createUri(request, path, EnumSet.of(Permission.Read));
 
-            response.status(201);
-            response.header("Location", uri.toASCIIString());
+            return new PostedMessage(msgId, uri, roUri);
+        });
+        // only after commit, so that subscribers can always read what they are sent
+        recentMessages.add(spaceId, time, posted.msgId());
+        spaceVersions.bump(spaceId);
+        messageHub.publish(spaceId, posted.msgId(), posted.roUri());
+
+        response.status(201);
+        response.header("Location", posted.uri().toASCIIString());
+
+        return posted;
+    }
+
+    // imports up to MAX_POST_BATCH_SIZE messages in one transaction and returns their URIs in order
+    public JsonResponse postMessages(Request request, Response response) {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        String author = castNonNull(request.attribute("subject"), "nonnull since authenticated");
+        var json = new JSONArray(request.body());
+        if (json.isEmpty() || json.length() > MAX_POST_BATCH_SIZE) {
+            throw new IllegalArgumentException("batch must contain between 1 and " + MAX_POST_BATCH_SIZE + " messages");
+        }
+        var messages = new ArrayList<String>(json.length());
+        for (int i = 0; i < json.length(); ++i) {
+            var message = json.getJSONObject(i).getString("message");
+            if (message.length() > 1024) {
+                throw new IllegalArgumentException("message text too long at index " + i);
+            }
+            messages.add(message);
+        }
+
+        var time = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        var posted = database.withTransaction(tx -> {
+            var msgIds = database.findAll(Long.class, "SELECT NEXT VALUE FOR msg_id_seq FROM SYSTEM_RANGE(1, ?);",
+                    messages.size());
+
+            var rows = new ArrayList<List<?>>(messages.size());
+            var caps = new ArrayList<Capability>(2 * messages.size());
+            for (int i = 0; i < messages.size(); ++i) {
+                var msgId = msgIds.get(i);
+                rows.add(List.of(spaceId, msgId, author, time, messages.get(i)));
+                var path = "/spaces/" + spaceId + "/messages/" + msgId;
+                caps.add(new Capability(path, EnumSet.of(Permission.Read, Permission.Write, Permission.Delete)));
+                caps.add(new Capability(path, EnumSet.of(Permission.Read)));
+            }
+            database.updateBatch(INSERT_MESSAGE, rows);
+            var uris = capabilityController.createAll(request, caps);
 
-            return new JSONObject().put("uri", uri).put("uri-ro", roUri);
+            var result = new ArrayList<PostedMessage>(messages.size());
+            for (int i = 0; i < messages.size(); ++i) {
+                result.add(new PostedMessage(msgIds.get(i), uris.get(2 * i), uris.get(2 * i + 1)));
+            }
+            return result;
         });
+
+        for (var message : posted) {
+            recentMessages.add(spaceId, time, message.msgId());
+        }
+        spaceVersions.bump(spaceId);
+        for (var message : posted) {
+            messageHub.publish(spaceId, message.msgId(), message.roUri());
+        }
+        response.status(201);
+        return out -> out.array(posted);
     }
 
-    public Message readMessage(Request request, Response response) {
+    public byte[] readMessage(Request request, Response response) {
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var msgId = Long.parseLong(request.params(":msgId"));
 
-        var message = database.findUnique(Message.class,
+        var message = messageCache.get(spaceId, msgId, () -> database.findUnique(Message.class,
                 "SELECT space_id, msg_id, author, msg_time, msg_text FROM messages WHERE msg_id = ? AND space_id = ?",
-                msgId, spaceId);
+                msgId, spaceId));
+        if (message.isEmpty()) {
+            throw halt(404);
+        }
+        if (SpaceVersions.notModified(request, response, SpaceVersions.messageTag(message.get()))) {
+            return new byte[0];
+        }
 
         response.status(200);
-        return message;
+        return message.get();
     }
 
-    public JSONArray findMessages(Request request, Response response) {
+    public String findMessages(Request request, Response response) throws IOException {
+        if (MessageHub.acceptsEventStream(request)) {
+            // only a capability grants Read on a listing
+            Capability capability = castNonNull(request.attribute("capability"), "checked by requirePermission");
+            return messageHub.subscribe(request, response, capability.expiry(),
+                    capabilityController.stillValid(request, capability));
+        }
         var spaceId = Long.parseLong(request.params(":spaceId"));
         var since = Instant.now().minus(1, ChronoUnit.DAYS);
         if (request.queryParams("since") != null) {
             since = Instant.parse(request.queryParams("since"));
         }
-
-        var messages = database.findAll(Long.class, "SELECT msg_id FROM messages WHERE space_id = ? AND msg_time >= ?;",
-                spaceId, since);
+        var limit = DEFAULT_PAGE_SIZE;
+        if (request.queryParams("limit") != null) {
+            limit = Integer.parseInt(request.queryParams("limit"));
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+        }
+        var after = new MessageKey(since, -1);
+        if (request.queryParams("after") != null) {
+            after = MessageKey.parse(request.queryParams("after"));
+        }
         EnumSet<Permission> perms = castNonNull(request.attribute("perms"),
                 "nonnull since checked in requirePermission");
+        if (SpaceVersions.notModified(request, response, spaceVersions.listingTag(spaceId, request, perms))) {
+            return "";
+        }
+
+        var messages = recentMessages.find(spaceId, since, after, limit + 1, this::loadRecentMessages);
+        if (messages == null) {
+            messages = database.findAll(MessageKey::fromRow,
+                    "SELECT msg_time, msg_id FROM messages WHERE space_id = ? AND msg_time >= ? "
+                            + "AND (msg_time > ? OR (msg_time = ? AND msg_id > ?)) ORDER BY msg_time, msg_id LIMIT ?;",
+                    spaceId, since, after.time(), after.time(), after.msgId(), limit + 1);
+        }
+
+        if (messages.size() > limit) {
+            messages = messages.subList(0, limit);
+            var next = nextPageUri(request, messages.get(limit - 1));
+            response.header("Link", "<" + next + ">; rel=\"next\"");
+        }
 
         response.status(200);
-        return new JSONArray(messages.stream().map(msgId -> {
-            var path = format("/spaces/{0}/messages/{1}", spaceId, msgId);
-            return capabilityController.createUri(request, path, perms);
-        }).collect(Collectors.toList()));
+        var out = new JsonWriter(response.raw().getOutputStream());
+        out.write('[');
+        var expiry = Instant.now().plus(messageCapabilityLifetime);
+        for (int i = 0; i < messages.size(); i += CAPABILITY_BATCH_SIZE) {
+            var caps = messages.subList(i, Math.min(i + CAPABILITY_BATCH_SIZE, messages.size())).stream()
+                    .map(key -> new Capability("/spaces/" + spaceId + "/messages/" + key.msgId(), perms, expiry))
+                    .collect(Collectors.toList());
+            var uris = capabilityController.createAll(request, caps);
+            for (int j = 0; j < uris.size(); ++j) {
+                if (i + j > 0) {
+                    out.write(',');
+                }
+                out.value(uris.get(j));
+            }
+        }
+        out.write(']');
+        out.close();
+        return "";
     }
 
-    public static record Message(long spaceId, long msgId, String author, Instant time, String message) {
+    private List<MessageKey> loadRecentMessages(long spaceId, Instant since, int count) {
+        return database.findAll(MessageKey::fromRow, "SELECT msg_time, msg_id FROM messages WHERE space_id = ? "
+                + "AND msg_time >= ? ORDER BY msg_time DESC, msg_id DESC LIMIT ?;", spaceId, since, count);
+    }
+
+    private static String nextPageUri(Request request, MessageKey last) {
+        var uri = new StringBuilder(request.uri()).append("?after=").append(last.encode());
+        for (var param : request.queryParams()) {
+            if (!param.equals("after")) {
+                uri.append('&').append(URLEncoder.encode(param, StandardCharsets.UTF_8)).append('=')
+                        .append(URLEncoder.encode(request.queryParams(param), StandardCharsets.UTF_8));
+            }
+        }
+        return uri.toString();
+    }
+
+    private static record PostedMessage(long msgId, URI uri, URI roUri) implements JsonResponse {
+        @Override
+        public void writeTo(JsonWriter out) throws IOException {
+            out.object(POSTED_MESSAGE, uri, roUri);
+        }
+    }
+
+    static record MessageKey(Instant time, long msgId) {
+        static MessageKey fromRow(ResultSet row) throws SQLException {
+            return new MessageKey(castNonNull(row.getTimestamp("msg_time"), "nonnull by db constraint").toInstant(),
+                    row.getLong("msg_id"));
+        }
+
+        static MessageKey parse(String cursor) {
+            try {
+                var parts = new String(Base64Url.decode(cursor), StandardCharsets.UTF_8).split(",", 2);
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("invalid cursor");
+                }
+                return new MessageKey(Instant.parse(parts[0]), Long.parseLong(parts[1]));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("invalid cursor");
+            }
+        }
+
+        String encode() {
+            return Base64Url.encode((time + "," + msgId).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static record Message(long spaceId, long msgId, String author, Instant time, String message)
+            implements JsonResponse {
+        @Override
+        public void writeTo(JsonWriter out) throws IOException {
+            out.object(MESSAGE, format("/spaces/{0}/messages/{1}", spaceId, msgId), author, time, message);
+        }
+
         @Override
         public String toString() {
-            return new JSONObject().put("uri", format("/spaces/{0}/messages/{1}", spaceId, msgId)).put("author", author)
-                    .put("time", time.toString()).put("message", message).toString();
+            return new String(JsonWriter.toBytes(this), StandardCharsets.UTF_8);
         }
     }
 }
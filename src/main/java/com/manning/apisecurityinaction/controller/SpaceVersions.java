@@ -0,0 +1,81 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import spark.Request;
+import spark.Response;
+
+// Strong ETags for message listings and message reads. Every post and delete bumps its space's version, which a
+// listing's tag combines with everything else its body depends on: the query, the caller's permissions and how old
+// the capabilities in it may be. Versions come from one clock, so a space that was evicted restarts above any tag
+// it has ever had, and the boot time keeps tags from before a restart from matching.
+public final class SpaceVersions {
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong clock = new AtomicLong();
+    private final Cache<Long, Long> versions;
+    private final long revalidateMillis;
+
+    // listings older than revalidateAfter are sent again, so that cached capabilities and the default since
+    // window never lag by more than that
+    public SpaceVersions(long maxSpaces, Duration revalidateAfter) {
+        this.versions = CacheBuilder.newBuilder().maximumSize(maxSpaces).build();
+        this.revalidateMillis = revalidateAfter.toMillis();
+    }
+
+    // call after the change has been committed
+    public void bump(long spaceId) {
+        versions.put(spaceId, clock.incrementAndGet());
+    }
+
+    // read before the listing query runs, so that a tag can be older than its body but never newer
+    public String listingTag(long spaceId, Request request, Set<Permission> perms) {
+        var version = versions.asMap().computeIfAbsent(spaceId, id -> clock.incrementAndGet());
+        var query = Objects.requireNonNullElse(request.queryString(), "") + "|" + perms;
+        return "\"" + epoch + "-" + version + "-" + System.currentTimeMillis() / revalidateMillis + "-"
+                + Hashing.murmur3_32_fixed().hashString(query, StandardCharsets.UTF_8) + "\"";
+    }
+
+    public static String messageTag(byte[] json) {
+        return "\"" + Hashing.murmur3_128().hashBytes(json) + "\"";
+    }
+
+    // sets the validator headers and returns true if the client's copy is current, in which case the response is
+    // already a 304
+    public static boolean notModified(Request request, Response response, String tag) {
+        response.raw().setHeader("ETag", tag);
+        // capability URIs are specific to the caller, so only the client may store them
+        response.raw().setHeader("Cache-Control", "private, no-cache");
+        if (matches(request.headers("If-None-Match"), tag)) {
+            response.status(304);
+            return true;
+        }
+        return false;
+    }
+
+    // If-None-Match uses the weak comparison
+    private static boolean matches(@Nullable String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (var candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
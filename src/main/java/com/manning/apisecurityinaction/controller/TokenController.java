@@ -1,10 +1,10 @@
 package com.manning.apisecurityinaction.controller;
 
+import com.manning.apisecurityinaction.json.JsonResponse;
+import com.manning.apisecurityinaction.json.JsonWriter;
 import com.manning.apisecurityinaction.token.AuthnToken;
 import com.manning.apisecurityinaction.token.SecureTokenStore;
 
-import org.json.JSONObject;
-
 import spark.*;
 
 import java.time.Instant;
@@ -14,7 +14,9 @@ import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNul
 import static spark.Spark.halt;
 
 public record TokenController(SecureTokenStore<AuthnToken> tokenStore) {
-    public JSONObject login(Request request, Response response) {
+    private static final JsonWriter.Shape TOKEN = new JsonWriter.Shape("token");
+
+    public JsonResponse login(Request request, Response response) {
         String subject = castNonNull(request.attribute("subject"), "nonnull since authenticated");
         var expiry = Instant.now().plus(10, ChronoUnit.MINUTES);
 
@@ -22,7 +24,7 @@ public record TokenController(SecureTokenStore<AuthnToken> tokenStore) {
         var tokenId = tokenStore.create(request, token);
 
         response.status(201);
-        return new JSONObject().put("token", tokenId);
+        return out -> out.object(TOKEN, tokenId);
     }
 
     public void validateToken(Request request, Response response) throws Exception {
@@ -42,7 +44,7 @@ public record TokenController(SecureTokenStore<AuthnToken> tokenStore) {
         });
     }
 
-    public JSONObject logout(Request request, Response response) {
+    public JsonResponse logout(Request request, Response response) {
         var tokenId = request.headers("Authorization");
         if (tokenId == null || !tokenId.startsWith("Bearer ")) {
             throw new IllegalArgumentException("missing token header");
@@ -52,6 +54,6 @@ public record TokenController(SecureTokenStore<AuthnToken> tokenStore) {
         tokenStore.revoke(request, tokenId);
 
         response.status(200);
-        return new JSONObject();
+        return JsonResponse.EMPTY_OBJECT;
     }
 }
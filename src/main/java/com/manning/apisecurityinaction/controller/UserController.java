@@ -3,7 +3,8 @@ package com.manning.apisecurityinaction.controller;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
-import com.lambdaworks.crypto.SCryptUtil;
+import com.manning.apisecurityinaction.json.JsonResponse;
+import com.manning.apisecurityinaction.json.JsonWriter;
 
 import org.dalesbred.Database;
 import org.json.JSONObject;
@@ -13,10 +14,11 @@ import spark.Response;
 
 import static spark.Spark.halt;
 
-public record UserController(Database database) {
+public record UserController(Database database, PasswordHasher passwordHasher) {
     private static final String USERNAME_PATTERN = "[a-zA-Z][a-zA-Z0-9]{1,29}";
+    private static final JsonWriter.Shape USER = new JsonWriter.Shape("username");
 
-    public JSONObject registerUser(Request request, Response response) {
+    public JsonResponse registerUser(Request request, Response response) {
         var json = new JSONObject(request.body());
         var username = json.getString("username");
         var password = json.getString("password");
@@ -28,12 +30,12 @@ public record UserController(Database database) {
             throw new IllegalArgumentException("password must be at least 8 characters");
         }
 
-        var hash = SCryptUtil.scrypt(password, 32768, 8, 1);
+        var hash = passwordHasher.hash(password);
         database.updateUnique("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)", username, hash);
 
         response.status(201);
         response.header("Location", "/users/" + username);
-        return new JSONObject().put("username", username);
+        return out -> out.object(USER, username);
     }
 
     public void authenticate(Request request, Response response) {
@@ -59,7 +61,7 @@ public record UserController(Database database) {
 
         var hash = database.findOptional(String.class, "SELECT pw_hash FROM users WHERE user_id = ?", username);
 
-        if (hash.isPresent() && SCryptUtil.check(password, hash.get())) {
+        if (hash.isPresent() && passwordHasher.check(username, password, hash.get())) {
             request.attribute("subject", username);
         }
     }
@@ -0,0 +1,28 @@
+package com.manning.apisecurityinaction.json;
+
+import java.io.IOException;
+
+import spark.Route;
+
+// A response body that writes itself as JSON, in place of building a JSONObject and then a String from it
+@FunctionalInterface
+public interface JsonResponse {
+    JsonResponse EMPTY_OBJECT = out -> out.write("{}");
+
+    void writeTo(JsonWriter out) throws IOException;
+
+    // Spark can only serialize Strings, byte arrays and streams, so JSON results are written to the raw response
+    // here and Spark is left an empty body. The status must be set before the handler returns.
+    static Route streamed(Route route) {
+        return (request, response) -> {
+            var result = route.handle(request, response);
+            if (result instanceof JsonResponse json) {
+                try (var out = new JsonWriter(response.raw().getOutputStream())) {
+                    json.writeTo(out);
+                }
+                return "";
+            }
+            return result;
+        };
+    }
+}
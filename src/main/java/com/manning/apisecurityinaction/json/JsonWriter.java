@@ -0,0 +1,276 @@
+package com.manning.apisecurityinaction.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.json.JSONObject;
+
+// Writes JSON as UTF-8 straight to a stream through a pooled buffer. The output is byte-for-byte what org.json
+// and Spark's String serializer produce: strings are escaped by JSONObject.quote, object keys come out in the
+// HashMap order that JSONObject iterates in, and unpaired surrogates become '?' as in String.getBytes.
+public final class JsonWriter extends Writer {
+    private static final int BUFFER_SIZE = 4096;
+    private static final AtomicReferenceArray<byte @Nullable []> pool =
+            new AtomicReferenceArray<>(2 * Runtime.getRuntime().availableProcessors());
+
+    private final OutputStream out;
+    private byte[] buffer;
+    private int count;
+    private char highSurrogate;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = acquire();
+    }
+
+    public static byte[] toBytes(JsonResponse value) {
+        var bytes = new Capture();
+        try (var out = new JsonWriter(bytes)) {
+            value.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.bytes;
+    }
+
+    // values are given in the order the shape's keys were declared; nulls are left out as JSONObject.put does
+    public JsonWriter object(Shape shape, @Nullable Object... values) throws IOException {
+        if (values.length != shape.keys.length) {
+            throw new IllegalArgumentException("expected " + shape.keys.length + " values");
+        }
+        write('{');
+        var first = true;
+        for (var index : shape.order) {
+            var value = values[index];
+            if (value == null) {
+                continue;
+            }
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            writeAscii(shape.keys[index]);
+            value(value);
+        }
+        write('}');
+        return this;
+    }
+
+    public JsonWriter array(Iterable<?> values) throws IOException {
+        write('[');
+        var first = true;
+        for (var value : values) {
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            value(value);
+        }
+        write(']');
+        return this;
+    }
+
+    // mirrors JSONObject.writeValue for the types that the API returns
+    public JsonWriter value(@Nullable Object value) throws IOException {
+        if (value == null) {
+            write("null");
+        } else if (value instanceof String string) {
+            JSONObject.quote(string, this);
+        } else if (value instanceof JsonResponse json) {
+            json.writeTo(this);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Number number) {
+            write(JSONObject.numberToString(number));
+        } else if (value instanceof Boolean) {
+            write(value.toString());
+        } else {
+            JSONObject.quote(value.toString(), this);
+        }
+        return this;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (count + 4 > buffer.length) {
+            drain();
+        }
+        var ch = (char) c;
+        if (highSurrogate != 0) {
+            var high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(ch)) {
+                var codePoint = Character.toCodePoint(high, ch);
+                buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                return;
+            }
+            buffer[count++] = '?';
+            if (count + 3 > buffer.length) {
+                drain();
+            }
+        }
+        if (ch < 0x80) {
+            buffer[count++] = (byte) ch;
+        } else if (ch < 0x800) {
+            buffer[count++] = (byte) (0xc0 | (ch >> 6));
+            buffer[count++] = (byte) (0x80 | (ch & 0x3f));
+        } else if (Character.isHighSurrogate(ch)) {
+            highSurrogate = ch;
+        } else if (Character.isLowSurrogate(ch)) {
+            buffer[count++] = '?';
+        } else {
+            buffer[count++] = (byte) (0xe0 | (ch >> 12));
+            buffer[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+            buffer[count++] = (byte) (0x80 | (ch & 0x3f));
+        }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            write(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            write(string.charAt(i));
+        }
+    }
+
+    // hands buffered bytes to the stream without flushing it, so that a small response is not committed and
+    // afterAfter filters can still set headers
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    // the stream itself is left open for Spark to finish
+    @Override
+    public void close() throws IOException {
+        if (count < 0) {
+            return;
+        }
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            write('?');
+        }
+        drain();
+        count = -1;
+        release(buffer);
+    }
+
+    private void writeAscii(byte[] bytes) throws IOException {
+        if (count + bytes.length > buffer.length) {
+            drain();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (count + 20 > buffer.length) {
+            drain();
+        }
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        var digits = 1;
+        for (var rest = value / 10; rest > 0; rest /= 10) {
+            ++digits;
+        }
+        for (int i = count + digits - 1; i >= count; --i) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private static byte[] acquire() {
+        var length = pool.length();
+        var start = ThreadLocalRandom.current().nextInt(length);
+        for (int i = 0; i < length; ++i) {
+            var buffer = pool.getAndSet((start + i) % length, null);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void release(byte[] buffer) {
+        var length = pool.length();
+        var start = ThreadLocalRandom.current().nextInt(length);
+        for (int i = 0; i < length; ++i) {
+            if (pool.compareAndSet((start + i) % length, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    // The keys of a JSON object with their quoted and encoded forms computed once. JSONObject keeps its entries
+    // in a default-sized HashMap, so the iteration order of those same keys in a new HashMap is its output order,
+    // and leaving out null values does not change the order of the rest.
+    public static final class Shape {
+        private final byte[][] keys;
+        private final int[] order;
+
+        public Shape(String... keys) {
+            this.keys = new byte[keys.length][];
+            var positions = new HashMap<String, Integer>();
+            for (int i = 0; i < keys.length; ++i) {
+                this.keys[i] = (JSONObject.quote(keys[i]) + ":").getBytes(StandardCharsets.UTF_8);
+                if (positions.put(keys[i], i) != null) {
+                    throw new IllegalArgumentException("duplicate key " + keys[i]);
+                }
+            }
+            this.order = positions.values().stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    // collects a single drained buffer without the copy that ByteArrayOutputStream.toByteArray makes
+    private static final class Capture extends OutputStream {
+        byte[] bytes = new byte[0];
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            var result = new byte[bytes.length + len];
+            System.arraycopy(bytes, 0, result, 0, bytes.length);
+            System.arraycopy(b, off, result, bytes.length, len);
+            bytes = result;
+        }
+    }
+}
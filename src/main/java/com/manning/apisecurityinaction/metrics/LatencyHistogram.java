@@ -0,0 +1,41 @@
+package com.manning.apisecurityinaction.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// fixed-bucket histogram; recording is a bucket scan plus two LongAdder increments
+public final class LatencyHistogram {
+    static final long[] BOUNDS_NANOS = { 50_000L, 100_000L, 250_000L, 500_000L, 1_000_000L, 2_500_000L,
+            5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L };
+
+    private final LongAdder[] counts = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            ++i;
+        }
+        counts[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    // per-bucket counts, the last being the +Inf overflow bucket
+    long[] counts() {
+        var result = new long[counts.length];
+        for (int i = 0; i < counts.length; ++i) {
+            result[i] = counts[i].sum();
+        }
+        return result;
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+}
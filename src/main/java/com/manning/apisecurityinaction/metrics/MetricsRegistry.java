@@ -0,0 +1,179 @@
+package com.manning.apisecurityinaction.metrics;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import com.google.common.cache.CacheStats;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+// Prometheus text-format registry for stage and route timings, pool waits and cache statistics
+public final class MetricsRegistry {
+    private static final String[] BOUNDS_SECONDS = new String[LatencyHistogram.BOUNDS_NANOS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; ++i) {
+            BOUNDS_SECONDS[i] = BigDecimal.valueOf(LatencyHistogram.BOUNDS_NANOS[i], 9).stripTrailingZeros()
+                    .toPlainString();
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final boolean serverTiming;
+
+    public MetricsRegistry(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+
+    public LatencyHistogram histogram(String name, String help, String labels) {
+        var family = family(name, "histogram", help);
+        return family.histograms.computeIfAbsent(labels, k -> new LatencyHistogram());
+    }
+
+    public void counter(String name, String help, String labels, DoubleSupplier value) {
+        family(name, "counter", help).samples.add(new Sample(labels, value));
+    }
+
+    public void gauge(String name, String help, String labels, DoubleSupplier value) {
+        family(name, "gauge", help).samples.add(new Sample(labels, value));
+    }
+
+    public void cache(String cache, Supplier<CacheStats> stats) {
+        var label = label("cache", cache);
+        counter("natter_cache_hits_total", "Cache lookups that found an entry", label,
+                () -> stats.get().hitCount());
+        counter("natter_cache_misses_total", "Cache lookups that found no entry", label,
+                () -> stats.get().missCount());
+        counter("natter_cache_evictions_total", "Entries evicted by size or expiry", label,
+                () -> stats.get().evictionCount());
+    }
+
+    public Filter filter(String stage, Filter filter) {
+        var histogram = histogram("natter_stage_duration_seconds", "Time spent in each filter stage",
+                label("stage", stage));
+        return (request, response) -> {
+            var start = System.nanoTime();
+            try {
+                filter.handle(request, response);
+            } finally {
+                record(request, histogram, stage, System.nanoTime() - start);
+            }
+        };
+    }
+
+    public Route route(String route, Route handler) {
+        var histogram = histogram("natter_route_duration_seconds", "Time spent in each route handler",
+                label("route", route));
+        return (request, response) -> {
+            var start = System.nanoTime();
+            try {
+                return handler.handle(request, response);
+            } finally {
+                record(request, histogram, "handler", System.nanoTime() - start);
+            }
+        };
+    }
+
+    private void record(Request request, LatencyHistogram histogram, String stage, long nanos) {
+        histogram.record(nanos);
+        if (serverTiming) {
+            @Nullable StringBuilder timings = request.attribute("serverTiming");
+            if (timings == null) {
+                timings = new StringBuilder();
+                request.attribute("serverTiming", timings);
+            } else {
+                timings.append(", ");
+            }
+            timings.append(stage).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0d));
+        }
+    }
+
+    // streamed responses are already committed by the time this runs and so go without the header
+    public void serverTiming(Request request, Response response) {
+        @Nullable StringBuilder timings = request.attribute("serverTiming");
+        if (timings != null && !response.raw().isCommitted()) {
+            response.header("Server-Timing", timings.toString());
+        }
+    }
+
+    public Object scrape(Request request, Response response) throws IOException {
+        response.status(200);
+        // write directly so the JSON content type set by the security headers filter does not apply
+        response.raw().setContentType("text/plain; version=0.0.4; charset=utf-8");
+        var out = new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8);
+        write(out);
+        out.flush();
+        return "";
+    }
+
+    void write(Writer out) throws IOException {
+        for (var entry : families.entrySet()) {
+            var name = entry.getKey();
+            var family = entry.getValue();
+            out.write("# HELP " + name + " " + family.help + "\n");
+            out.write("# TYPE " + name + " " + family.type + "\n");
+            for (var sample : family.samples) {
+                out.write(name + braces(sample.labels()) + " " + sample.value().getAsDouble() + "\n");
+            }
+            for (var histogram : family.histograms.entrySet()) {
+                var labels = histogram.getKey();
+                var separator = labels.isEmpty() ? "" : ",";
+                var counts = histogram.getValue().counts();
+                var cumulative = 0L;
+                for (int i = 0; i < counts.length; ++i) {
+                    cumulative += counts[i];
+                    var le = i < BOUNDS_SECONDS.length ? BOUNDS_SECONDS[i] : "+Inf";
+                    out.write(name + "_bucket{" + labels + separator + "le=\"" + le + "\"} " + cumulative + "\n");
+                }
+                out.write(name + "_sum" + braces(labels) + " " + histogram.getValue().sumNanos() / 1e9 + "\n");
+                out.write(name + "_count" + braces(labels) + " " + cumulative + "\n");
+            }
+        }
+    }
+
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private Family family(String name, String type, String help) {
+        var family = families.computeIfAbsent(name, k -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final List<Sample> samples = new CopyOnWriteArrayList<>();
+        final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static record Sample(String labels, DoubleSupplier value) {
+    }
+}
@@ -0,0 +1,75 @@
+package com.manning.apisecurityinaction.metrics;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+// records how long callers wait for a pooled connection
+public final class TimedDataSource implements DataSource {
+    private final DataSource delegate;
+    private final LatencyHistogram waitTime;
+
+    public TimedDataSource(DataSource delegate, LatencyHistogram waitTime) {
+        this.delegate = delegate;
+        this.waitTime = waitTime;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        var start = System.nanoTime();
+        try {
+            return delegate.getConnection();
+        } finally {
+            waitTime.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        var start = System.nanoTime();
+        try {
+            return delegate.getConnection(username, password);
+        } finally {
+            waitTime.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,130 @@
+package com.manning.apisecurityinaction.server;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
+
+// JdbcConnectionPool waits for a free connection with Object.wait inside a synchronized block, which pins a
+// virtual thread to its carrier. Holding a permit per checked-out connection means that waiters park on the
+// semaphore instead and the pool never has to wait.
+public final class PermitDataSource implements DataSource {
+    private final DataSource delegate;
+    private final Semaphore permits;
+
+    public PermitDataSource(DataSource delegate, int maxConnections) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        acquire();
+        try {
+            return permitted(delegate.getConnection());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        acquire();
+        try {
+            return permitted(delegate.getConnection(username, password));
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquire() throws SQLException {
+        var timeout = delegate.getLoginTimeout();
+        try {
+            if (!permits.tryAcquire(timeout > 0 ? timeout : 30, TimeUnit.SECONDS)) {
+                throw new SQLTransientConnectionException("timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("interrupted waiting for a database connection", e);
+        }
+    }
+
+    // returns a view of the connection that gives back its permit when first closed. InvocationHandler is
+    // annotated as never returning null, but Proxy accepts null for void and reference results.
+    @SuppressWarnings("nullness:return")
+    private Connection permitted(Connection connection) {
+        var closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> invoke(connection, closed, method, args));
+    }
+
+    private @Nullable Object invoke(Connection connection, AtomicBoolean closed, Method method, Object[] args)
+            throws Throwable {
+        if (method.getName().equals("close") && method.getParameterCount() == 0) {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    connection.close();
+                } finally {
+                    permits.release();
+                }
+            }
+            return null;
+        }
+        try {
+            return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+            throw castNonNull(e.getCause(), "thrown by the connection");
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+}
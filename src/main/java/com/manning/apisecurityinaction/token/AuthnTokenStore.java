@@ -4,8 +4,6 @@ import java.security.SecureRandom;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.dalesbred.Database;
 import org.json.JSONObject;
@@ -21,9 +19,6 @@ public final class AuthnTokenStore implements ConfidentialTokenStore<AuthnToken>
     public AuthnTokenStore(Database database, SecureRandom rng) {
         this.database = database;
         this.rng = rng;
-        // this can only be guaranteed initialized if there are no subclasses
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(this::deleteExpiredTokens, 10, 10,
-                TimeUnit.MINUTES);
     }
 
     public String create(Request request, AuthnToken token) {
@@ -31,14 +26,14 @@ public final class AuthnTokenStore implements ConfidentialTokenStore<AuthnToken>
         var attrs = new JSONObject(token.attributes).toString();
 
         database.updateUnique("INSERT INTO tokens(token_id, user_id, expiry, attributes) VALUES(?, ?, ?, ?);",
-                Util.hash(tokenId), token.username, token.expiry, attrs);
+                Util.sha256(tokenId), token.username, token.expiry, attrs);
 
         return tokenId;
     }
 
     public Optional<AuthnToken> read(Request request, String tokenId) {
         return database.findOptional(this::readToken,
-                "SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?;", Util.hash(tokenId));
+                "SELECT user_id, expiry, attributes FROM tokens WHERE token_id = ?;", Util.sha256(tokenId));
     }
 
     private AuthnToken readToken(ResultSet resultSet) throws SQLException {
@@ -54,7 +49,7 @@ public final class AuthnTokenStore implements ConfidentialTokenStore<AuthnToken>
     }
 
     public void revoke(Request request, String tokenId) {
-        database.update("DELETE FROM tokens WHERE token_id = ?;", Util.hash(tokenId));
+        database.update("DELETE FROM tokens WHERE token_id = ?;", Util.sha256(tokenId));
     }
 
     private String randomId() {
@@ -62,8 +57,4 @@ public final class AuthnTokenStore implements ConfidentialTokenStore<AuthnToken>
         rng.nextBytes(bytes);
         return Base64Url.encode(bytes);
     }
-
-    public void deleteExpiredTokens() {
-        database.update("DELETE FROM tokens WHERE expiry < current_timestamp;");
-    }
 }
@@ -0,0 +1,113 @@
+package com.manning.apisecurityinaction.token;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import spark.Request;
+
+// Guava caches cannot expire each entry at its own time, so a background purge drops tokens within purgeInterval
+// of their expiry rather than leaving them to be found by a read or pushed out by newer ones.
+public final class CachingAuthnTokenStore implements SecureTokenStore<AuthnToken>, AutoCloseable {
+    private final SecureTokenStore<AuthnToken> delegate;
+    private final Cache<String, AuthnToken> tokens;
+    private final Cache<String, Boolean> unknownTokens;
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final Duration purgeInterval;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("authn-token-purge").setDaemon(true).build());
+
+    public CachingAuthnTokenStore(SecureTokenStore<AuthnToken> delegate, long maximumSize, Duration negativeTtl,
+            Duration purgeInterval) {
+        this.delegate = delegate;
+        this.purgeInterval = purgeInterval;
+        this.tokens = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        this.unknownTokens = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(negativeTtl)
+                .recordStats().build();
+    }
+
+    public CachingAuthnTokenStore start() {
+        executor.scheduleWithFixedDelay(this::purge, purgeInterval.toMillis(), purgeInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    @Override
+    public String create(Request request, AuthnToken token) {
+        return delegate.create(request, token);
+    }
+
+    @Override
+    public Optional<AuthnToken> read(Request request, String tokenId) {
+        var key = Util.hash(tokenId);
+
+        var cached = tokens.getIfPresent(key);
+        if (cached != null) {
+            if (Instant.now().isBefore(cached.expiry)) {
+                return Optional.of(cached);
+            }
+            tokens.invalidate(key);
+            expiredCount.incrementAndGet();
+        }
+        if (unknownTokens.getIfPresent(key) != null) {
+            return Optional.empty();
+        }
+
+        var token = delegate.read(request, tokenId);
+        if (token.isEmpty()) {
+            unknownTokens.put(key, Boolean.TRUE);
+        } else if (Instant.now().isBefore(token.get().expiry)) {
+            tokens.put(key, token.get());
+            // a concurrent revoke may have run between the delegate read and the put above
+            if (unknownTokens.getIfPresent(key) != null) {
+                tokens.invalidate(key);
+            }
+        }
+        return token;
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        var key = Util.hash(tokenId);
+        unknownTokens.put(key, Boolean.TRUE);
+        tokens.invalidate(key);
+        delegate.revoke(request, tokenId);
+    }
+
+    private void purge() {
+        var now = Instant.now();
+        for (var entry : tokens.asMap().entrySet()) {
+            // only the entry that was seen, in case a concurrent read has just replaced it
+            if (!now.isBefore(entry.getValue().expiry) && tokens.asMap().remove(entry.getKey(), entry.getValue())) {
+                expiredCount.incrementAndGet();
+            }
+        }
+        unknownTokens.cleanUp();
+    }
+
+    public CacheStats stats() {
+        return tokens.stats();
+    }
+
+    public CacheStats negativeStats() {
+        return unknownTokens.stats();
+    }
+
+    public long expiredCount() {
+        return expiredCount.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -1,8 +1,19 @@
 package com.manning.apisecurityinaction.token;
 
+import java.time.Instant;
 import java.util.EnumSet;
 
 import com.manning.apisecurityinaction.controller.Permission;
 
-public record Capability(String path, EnumSet<Permission> perms) {
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// a null expiry means the capability lasts until it is revoked
+public record Capability(String path, EnumSet<Permission> perms, @Nullable Instant expiry) {
+    public Capability(String path, EnumSet<Permission> perms) {
+        this(path, perms, null);
+    }
+
+    public boolean isExpired(Instant now) {
+        return expiry != null && !now.isBefore(expiry);
+    }
 }
@@ -0,0 +1,153 @@
+package com.manning.apisecurityinaction.token;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
+
+// Periodic job that reclaims capabilities whose space or message no longer exists, such as those minted before
+// deletePost revoked them. Walks caps along cap_path_idx in keyset batches, pausing after each batch for as long
+// as it took, in the same way as ExpirySweeper. Paths with ids that are not plain numbers, such as the
+// "1,234" ids that MessageFormat used to produce, can never match a request and are reclaimed as well.
+public final class CapabilityCompactor implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CapabilityCompactor.class);
+    private static final Pattern SPACE_PATH = Pattern.compile("/spaces/([^/]+)(?:/messages(?:/([^/]+))?)?");
+    private static final Pattern ID = Pattern.compile("[0-9]{1,18}");
+
+    private final Database database;
+    private final int batchSize;
+    private final Duration interval;
+    private final AtomicLong reclaimedCount = new AtomicLong();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("capability-compactor").setDaemon(true).build());
+    private volatile Compaction lastCompaction = new Compaction(0, 0, Duration.ZERO);
+
+    public CapabilityCompactor(Database database, int batchSize, Duration interval) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.interval = interval;
+    }
+
+    // the first run waits a full interval, since at startup there is nothing to reclaim
+    public CapabilityCompactor start() {
+        executor.scheduleWithFixedDelay(this::run, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public Compaction compact() {
+        var start = System.nanoTime();
+        var spaces = new HashMap<Long, Boolean>();
+        var cursor = new Row(new byte[0], "");
+        long scanned = 0, reclaimed = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            // the redundant path >= ? lets H2 seek the index to the cursor rather than scanning from the start
+            var rows = database.findAll(CapabilityCompactor::readRow, "SELECT cap_id, path FROM caps WHERE path >= ? "
+                    + "AND (path > ? OR (path = ? AND cap_id > ?)) ORDER BY path, cap_id LIMIT ?;", cursor.path(),
+                    cursor.path(), cursor.path(), cursor.capId(), batchSize);
+            if (rows.isEmpty()) {
+                break;
+            }
+            var batchStart = System.nanoTime();
+            var orphans = new ArrayList<List<?>>();
+            for (var row : rows) {
+                if (isOrphan(row.path(), spaces)) {
+                    orphans.add(List.of(row.capId()));
+                }
+            }
+            if (!orphans.isEmpty()) {
+                database.updateBatch("DELETE FROM caps WHERE cap_id = ?;", orphans);
+            }
+            scanned += rows.size();
+            reclaimed += orphans.size();
+            reclaimedCount.addAndGet(orphans.size());
+            cursor = rows.get(rows.size() - 1);
+
+            if (rows.size() < batchSize) {
+                break;
+            }
+            pause(System.nanoTime() - batchStart);
+        }
+
+        var compaction = new Compaction(scanned, reclaimed, Duration.ofNanos(System.nanoTime() - start));
+        lastCompaction = compaction;
+        logger.info("capability compaction reclaimed {} of {} rows in {}ms", reclaimed, scanned,
+                compaction.elapsed().toMillis());
+        return compaction;
+    }
+
+    public long reclaimedCount() {
+        return reclaimedCount.get();
+    }
+
+    public Compaction lastCompaction() {
+        return lastCompaction;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            logger.warn("capability compaction failed", e);
+        }
+    }
+
+    private boolean isOrphan(String path, Map<Long, Boolean> spaces) {
+        var matcher = SPACE_PATH.matcher(path);
+        if (!matcher.matches()) {
+            return false;
+        }
+        var spaceId = castNonNull(matcher.group(1), "group 1 is not optional");
+        var msgId = matcher.group(2);
+        if (!ID.matcher(spaceId).matches() || (msgId != null && !ID.matcher(msgId).matches())) {
+            return true;
+        }
+        var space = Long.parseLong(spaceId);
+        var spaceExists = spaces.computeIfAbsent(space, id -> database.findUniqueLong(
+                "SELECT COUNT(*) FROM spaces WHERE space_id = ?;", id) > 0);
+        if (!spaceExists) {
+            return true;
+        }
+        return msgId != null && database.findUniqueLong(
+                "SELECT COUNT(*) FROM messages WHERE msg_id = ? AND space_id = ?;", Long.parseLong(msgId), space) == 0;
+    }
+
+    private static void pause(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Row readRow(ResultSet resultSet) throws SQLException {
+        return new Row(castNonNull(resultSet.getBytes(1), "nonnull by db constraint"),
+                castNonNull(resultSet.getString(2), "nonnull by db constraint"));
+    }
+
+    public static record Compaction(long scanned, long reclaimed, Duration elapsed) {
+    }
+
+    private static record Row(byte[] capId, String path) {
+    }
+}
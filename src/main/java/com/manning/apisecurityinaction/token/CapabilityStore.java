@@ -3,6 +3,10 @@ package com.manning.apisecurityinaction.token;
 import java.security.SecureRandom;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import com.manning.apisecurityinaction.controller.Permission;
@@ -13,22 +17,49 @@ import spark.Request;
 
 import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
 
-public record CapabilityStore(Database database, SecureRandom rng) implements ConfidentialTokenStore<Capability> {
+public record CapabilityStore(Database database, SecureRandom rng)
+        implements ConfidentialTokenStore<Capability>, PathRevoker {
+    private static final String INSERT_CAP =
+            "INSERT INTO caps(cap_id, path, r, w, d, expiry) VALUES(?, ?, ?, ?, ?, ?);";
+
     @Override
     public String create(Request request, Capability token) {
         var tokenId = randomId();
 
-        database.updateUnique("INSERT INTO caps(cap_id, path, r, w, d) VALUES(?, ?, ?, ?, ?);", Util.hash(tokenId),
-                token.path(), token.perms().contains(Permission.Read), token.perms().contains(Permission.Write),
-                token.perms().contains(Permission.Delete));
+        database.updateUnique(INSERT_CAP, capRow(tokenId, token).toArray());
 
         return tokenId;
     }
 
+    @Override
+    public List<String> createAll(Request request, List<Capability> tokens) {
+        if (tokens.isEmpty()) {
+            return List.of();
+        }
+        var tokenIds = new ArrayList<String>(tokens.size());
+        var rows = new ArrayList<List<?>>(tokens.size());
+        for (var token : tokens) {
+            var tokenId = randomId();
+            tokenIds.add(tokenId);
+            rows.add(capRow(tokenId, token));
+        }
+
+        database.updateBatch(INSERT_CAP, rows);
+
+        return tokenIds;
+    }
+
+    private static List<?> capRow(String tokenId, Capability token) {
+        // Arrays.asList since expiry may be null
+        return Arrays.asList(Util.sha256(tokenId), token.path(), token.perms().contains(Permission.Read),
+                token.perms().contains(Permission.Write), token.perms().contains(Permission.Delete), token.expiry());
+    }
+
     @Override
     public Optional<Capability> read(Request request, String tokenId) {
-        return database.findOptional(this::readToken, "SELECT path, r, w, d FROM caps WHERE cap_id = ?;",
-                Util.hash(tokenId));
+        // expired rows may not have been swept yet
+        return database.findOptional(this::readToken, "SELECT path, r, w, d, expiry FROM caps WHERE cap_id = ?;",
+                Util.sha256(tokenId)).filter(token -> !token.isExpired(Instant.now()));
     }
 
     private Capability readToken(ResultSet resultSet) throws SQLException {
@@ -36,12 +67,22 @@ public record CapabilityStore(Database database, SecureRandom rng) implements Co
         var perms = Permission.permsFrom(resultSet.getBoolean("r"), resultSet.getBoolean("w"),
                 resultSet.getBoolean("d"));
 
-        return new Capability(path, perms);
+        var expiry = resultSet.getTimestamp("expiry");
+
+        return new Capability(path, perms, expiry == null ? null : expiry.toInstant());
     }
 
     @Override
     public void revoke(Request request, String tokenId) {
-        database.update("DELETE FROM caps WHERE cap_id = ?;", Util.hash(tokenId));
+        database.update("DELETE FROM caps WHERE cap_id = ?;", Util.sha256(tokenId));
+    }
+
+    // runs in the caller's transaction if there is one
+    @Override
+    public int revokePath(String path) {
+        // two statements so that each is a single cap_path_idx range; '0' sorts straight after '/'
+        return database.update("DELETE FROM caps WHERE path = ?;", path)
+                + database.update("DELETE FROM caps WHERE path >= ? AND path < ?;", path + "/", path + "0");
     }
 
     private String randomId() {
@@ -0,0 +1,76 @@
+package com.manning.apisecurityinaction.token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Optional;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import spark.Request;
+
+public class EncryptedTokenStore<T> implements SecureTokenStore<T> {
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final TokenStore<T> delegate;
+    private final Key encKey;
+    private final SecureRandom rng = new SecureRandom();
+
+    private EncryptedTokenStore(TokenStore<T> delegate, Key encKey) {
+        this.delegate = delegate;
+        this.encKey = encKey;
+    }
+
+    public static <T> SecureTokenStore<T> wrap(TokenStore<T> store, Key encKey) {
+        return new EncryptedTokenStore<T>(store, encKey);
+    }
+
+    @Override
+    public String create(Request request, T token) {
+        var tokenId = delegate.create(request, token);
+        var nonce = new byte[NONCE_LENGTH];
+        rng.nextBytes(nonce);
+        try {
+            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, encKey, new GCMParameterSpec(TAG_BITS, nonce));
+            var plaintext = tokenId.getBytes(StandardCharsets.UTF_8);
+            var sealed = Arrays.copyOf(nonce, NONCE_LENGTH + cipher.getOutputSize(plaintext.length));
+            cipher.doFinal(plaintext, 0, plaintext.length, sealed, NONCE_LENGTH);
+            return Base64Url.encode(sealed);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Optional<T> read(Request request, String tokenId) {
+        return open(tokenId).flatMap(realTokenId -> delegate.read(request, realTokenId));
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        open(tokenId).ifPresent(realTokenId -> delegate.revoke(request, realTokenId));
+    }
+
+    private Optional<String> open(String tokenId) {
+        try {
+            var sealed = Base64Url.decode(tokenId);
+            if (sealed.length < NONCE_LENGTH + TAG_BITS / 8) {
+                return Optional.empty();
+            }
+            var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, encKey, new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_LENGTH));
+            var plaintext = cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+            return Optional.of(new String(plaintext, StandardCharsets.UTF_8));
+        } catch (AEADBadTagException | IllegalArgumentException e) {
+            return Optional.empty();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
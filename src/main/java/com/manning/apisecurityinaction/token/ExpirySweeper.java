@@ -0,0 +1,170 @@
+package com.manning.apisecurityinaction.token;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.dalesbred.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.checkerframework.checker.nullness.util.NullnessUtil.castNonNull;
+
+// Deletes expired rows in short batches, walking each table's (expiry, key) index with a keyset cursor so that no
+// single statement holds locks for long. After each batch it pauses for as long as the batch took, and it sweeps
+// again soon after a sweep that was cut short by maxBatches.
+public final class ExpirySweeper implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    private final Database database;
+    private final int batchSize;
+    private final int maxBatches;
+    private final Duration interval;
+    private final Duration backlogInterval;
+    private final List<Target> targets = new ArrayList<>();
+    private final Map<String, AtomicLong> deletedCounts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("expiry-sweeper").setDaemon(true).build());
+    private volatile Sweep lastSweep = new Sweep(Instant.EPOCH, Map.of(), Duration.ZERO, false);
+
+    public ExpirySweeper(Database database, int batchSize, int maxBatches, Duration interval,
+            Duration backlogInterval) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.interval = interval;
+        this.backlogInterval = backlogInterval;
+    }
+
+    // table and column names come from code, never from requests
+    public ExpirySweeper register(String table, String keyColumn) {
+        // the redundant expiry >= ? lets H2 seek the index to the cursor rather than scanning from the start
+        var select = "SELECT expiry, " + keyColumn + " FROM " + table + " WHERE expiry < ? AND expiry >= ? AND "
+                + "(expiry > ? OR (expiry = ? AND " + keyColumn + " > ?)) ORDER BY expiry, " + keyColumn + " LIMIT ?;";
+        var delete = "DELETE FROM " + table + " WHERE " + keyColumn + " = ? AND expiry < ?;";
+        targets.add(new Target(table, select, delete));
+        deletedCounts.put(table, new AtomicLong());
+        return this;
+    }
+
+    public ExpirySweeper start() {
+        executor.schedule(this::run, interval.toMillis(), TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public Sweep sweep() {
+        var start = System.nanoTime();
+        var cutoff = Instant.now();
+        var deleted = new LinkedHashMap<String, Long>();
+        var backlog = false;
+        for (var target : targets) {
+            var cursor = new Row(Instant.EPOCH, new byte[0]);
+            var count = 0L;
+            var batches = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                var rows = database.findAll(ExpirySweeper::readRow, target.select(), cutoff, cursor.expiry(),
+                        cursor.expiry(), cursor.expiry(), cursor.key(), batchSize);
+                if (rows.isEmpty()) {
+                    break;
+                }
+                var batchStart = System.nanoTime();
+                var keys = new ArrayList<List<?>>(rows.size());
+                for (var row : rows) {
+                    keys.add(List.of(row.key(), cutoff));
+                }
+                database.updateBatch(target.delete(), keys);
+                count += rows.size();
+                cursor = rows.get(rows.size() - 1);
+
+                if (rows.size() < batchSize) {
+                    break;
+                }
+                if (++batches >= maxBatches) {
+                    backlog = true;
+                    break;
+                }
+                pause(System.nanoTime() - batchStart);
+            }
+            deleted.put(target.table(), count);
+            castNonNull(deletedCounts.get(target.table()), "registered with the target").addAndGet(count);
+        }
+
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+        var sweep = new Sweep(cutoff, Collections.unmodifiableMap(deleted), elapsed, backlog);
+        lastSweep = sweep;
+        if (deleted.values().stream().anyMatch(count -> count > 0)) {
+            logger.info("expiry sweep deleted {} in {}ms{}", deleted, sweep.elapsed().toMillis(),
+                    backlog ? ", backlog remains" : "");
+        }
+        return sweep;
+    }
+
+    // in the order they were registered
+    public List<String> tables() {
+        return targets.stream().map(Target::table).collect(Collectors.toList());
+    }
+
+    public long deletedCount(String table) {
+        var count = deletedCounts.get(table);
+        return count == null ? 0 : count.get();
+    }
+
+    public Sweep lastSweep() {
+        return lastSweep;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        var delay = interval;
+        try {
+            if (sweep().backlog()) {
+                delay = backlogInterval;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("expiry sweep failed", e);
+        }
+        if (!executor.isShutdown()) {
+            executor.schedule(this::run, delay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void pause(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Row readRow(ResultSet resultSet) throws SQLException {
+        return new Row(castNonNull(resultSet.getTimestamp(1), "nonnull by query").toInstant(),
+                castNonNull(resultSet.getBytes(2), "nonnull by db constraint"));
+    }
+
+    public static record Sweep(Instant cutoff, Map<String, Long> deleted, Duration elapsed, boolean backlog) {
+    }
+
+    private static record Target(String table, String select, String delete) {
+    }
+
+    private static record Row(Instant expiry, byte[] key) {
+    }
+}
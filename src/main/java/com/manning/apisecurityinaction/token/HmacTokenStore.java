@@ -1,23 +1,19 @@
 package com.manning.apisecurityinaction.token;
 
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
-import javax.crypto.Mac;
-
 import spark.Request;
 
 public class HmacTokenStore<T> implements SecureTokenStore<T> {
     private final TokenStore<T> delegate;
-    private final Key macKey;
+    private final MacEngine macEngine;
 
     private HmacTokenStore(TokenStore<T> delegate, Key macKey) {
         this.delegate = delegate;
-        this.macKey = macKey;
+        this.macEngine = new MacEngine(macKey);
     }
 
     public static <T> SecureTokenStore<T> wrap(ConfidentialTokenStore<T> store, Key macKey) {
@@ -31,46 +27,33 @@ public class HmacTokenStore<T> implements SecureTokenStore<T> {
     @Override
     public String create(Request request, T token) {
         var tokenId = delegate.create(request, token);
-        var tag = hmac(tokenId);
-        return tokenId + '.' + Base64Url.encode(tag);
+        return macEngine.sign(tokenId);
     }
 
-    private byte[] hmac(String tokenId) {
-        try {
-            var mac = Mac.getInstance(macKey.getAlgorithm());
-            mac.init(macKey);
-            return mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8));
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            throw new RuntimeException(e);
+    @Override
+    public List<String> createAll(Request request, List<T> tokens) {
+        var tokenIds = delegate.createAll(request, tokens);
+        var result = new ArrayList<String>(tokenIds.size());
+        for (var tokenId : tokenIds) {
+            result.add(macEngine.sign(tokenId));
         }
+        return result;
     }
 
     @Override
     public Optional<T> read(Request request, String tokenId) {
         var index = tokenId.lastIndexOf('.');
-        if (index == -1) {
+        if (index == -1 || !macEngine.verify(tokenId, index)) {
             return Optional.empty();
         }
-        var realTokenId = tokenId.substring(0, index);
-        var provided = Base64Url.decode(tokenId.substring(index + 1));
-        var computed = hmac(realTokenId);
-        if (!MessageDigest.isEqual(provided, computed)) {
-            return Optional.empty();
-        }
-        return delegate.read(request, realTokenId);
+        return delegate.read(request, tokenId.substring(0, index));
     }
 
     @Override
     public void revoke(Request request, String tokenId) {
         var index = tokenId.lastIndexOf('.');
-        if (index == -1) {
-            return;
-        }
-        var realTokenId = tokenId.substring(0, index);
-        var provided = Base64Url.decode(tokenId.substring(index + 1));
-        var computed = hmac(realTokenId);
-        if (MessageDigest.isEqual(provided, computed)) {
-            delegate.revoke(request, realTokenId);
+        if (index != -1 && macEngine.verify(tokenId, index)) {
+            delegate.revoke(request, tokenId.substring(0, index));
         }
     }
 }
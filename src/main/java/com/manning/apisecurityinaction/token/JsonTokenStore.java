@@ -0,0 +1,60 @@
+package com.manning.apisecurityinaction.token;
+
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Optional;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import spark.Request;
+
+public final class JsonTokenStore implements TokenStore<AuthnToken> {
+    private final SecureRandom rng;
+    private final RevocationList revocations;
+
+    public JsonTokenStore(SecureRandom rng, RevocationList revocations) {
+        this.rng = rng;
+        this.revocations = revocations;
+    }
+
+    @Override
+    public String create(Request request, AuthnToken token) {
+        return new JSONObject().put("jti", randomId()).put("sub", token.username)
+                .put("exp", token.expiry.getEpochSecond()).put("attrs", token.attributes).toString();
+    }
+
+    @Override
+    public Optional<AuthnToken> read(Request request, String tokenId) {
+        try {
+            var claims = new JSONObject(tokenId);
+            if (revocations.isRevoked(claims.getString("jti"))) {
+                return Optional.empty();
+            }
+            var token = new AuthnToken(Instant.ofEpochSecond(claims.getLong("exp")), claims.getString("sub"));
+            var attrs = claims.getJSONObject("attrs");
+            for (var key : attrs.keySet()) {
+                token.attributes.put(key, attrs.getString(key));
+            }
+            return Optional.of(token);
+        } catch (JSONException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        try {
+            var claims = new JSONObject(tokenId);
+            revocations.revoke(claims.getString("jti"), Instant.ofEpochSecond(claims.getLong("exp")));
+        } catch (JSONException e) {
+            // not a token we issued
+        }
+    }
+
+    private String randomId() {
+        var bytes = new byte[16];
+        rng.nextBytes(bytes);
+        return Base64Url.encode(bytes);
+    }
+}
@@ -0,0 +1,155 @@
+package com.manning.apisecurityinaction.token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// lock-free pool of initialized Mac instances; verifying an ASCII token.tag does not allocate
+final class MacEngine {
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL, (byte) -1);
+        var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final Key macKey;
+    private final int macLength;
+    private final AtomicReferenceArray<@Nullable State> pool;
+
+    MacEngine(Key macKey) {
+        this.macKey = macKey;
+        var state = new State(newMac(macKey));
+        this.macLength = state.mac.getMacLength();
+        this.pool = new AtomicReferenceArray<>(2 * Runtime.getRuntime().availableProcessors());
+        pool.set(0, state);
+    }
+
+    String sign(String tokenId) {
+        var state = acquire();
+        try {
+            return tokenId + '.' + Base64Url.encode(state.mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            release(state);
+        }
+    }
+
+    boolean verify(String token, int separator) {
+        var state = acquire();
+        try {
+            var provided = state.provided;
+            if (decodeTag(token, separator + 1, provided) != macLength) {
+                return false;
+            }
+            update(state, token, separator);
+            var computed = state.computed;
+            state.mac.doFinal(computed, 0);
+
+            var diff = 0;
+            for (int i = 0; i < macLength; ++i) {
+                diff |= provided[i] ^ computed[i];
+            }
+            return diff == 0;
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            release(state);
+        }
+    }
+
+    private static void update(State state, String token, int length) {
+        var input = state.input;
+        if (input.length < length) {
+            input = state.input = new byte[Math.max(length, 2 * input.length)];
+        }
+        for (int i = 0; i < length; ++i) {
+            var c = token.charAt(i);
+            if (c >= 0x80) {
+                state.mac.update(token.substring(0, length).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            input[i] = (byte) c;
+        }
+        state.mac.update(input, 0, length);
+    }
+
+    // decodes unpadded base64url into out, returning the decoded length or -1 if invalid or too long
+    private static int decodeTag(String token, int from, byte[] out) {
+        var length = token.length() - from;
+        if (length % 4 == 1 || length * 6 / 8 > out.length) {
+            return -1;
+        }
+        int bits = 0, bitCount = 0, outIndex = 0;
+        for (int i = from; i < token.length(); ++i) {
+            var c = token.charAt(i);
+            var value = c < 128 ? BASE64URL[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[outIndex++] = (byte) (bits >> bitCount);
+            }
+        }
+        return outIndex;
+    }
+
+    private State acquire() {
+        var length = pool.length();
+        var start = ThreadLocalRandom.current().nextInt(length);
+        for (int i = 0; i < length; ++i) {
+            var state = pool.getAndSet((start + i) % length, null);
+            if (state != null) {
+                return state;
+            }
+        }
+        return new State(newMac(macKey));
+    }
+
+    private void release(State state) {
+        var length = pool.length();
+        var start = ThreadLocalRandom.current().nextInt(length);
+        for (int i = 0; i < length; ++i) {
+            if (pool.compareAndSet((start + i) % length, null, state)) {
+                return;
+            }
+        }
+    }
+
+    private static Mac newMac(Key macKey) {
+        try {
+            var mac = Mac.getInstance(macKey.getAlgorithm());
+            mac.init(macKey);
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class State {
+        final Mac mac;
+        final byte[] computed;
+        final byte[] provided;
+        byte[] input = new byte[128];
+
+        State(Mac mac) {
+            this.mac = mac;
+            this.computed = new byte[mac.getMacLength()];
+            this.provided = new byte[mac.getMacLength()];
+        }
+    }
+}
@@ -1,18 +1,53 @@
 package com.manning.apisecurityinaction.token;
 
 import java.security.Key;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
-import com.github.nitram509.jmacaroons.GeneralCaveatVerifier;
+import com.github.nitram509.jmacaroons.CaveatPacket;
 import com.github.nitram509.jmacaroons.MacaroonsBuilder;
 import com.github.nitram509.jmacaroons.MacaroonsVerifier;
-import com.github.nitram509.jmacaroons.verifier.TimestampCaveatVerifier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import spark.Request;
 
-public record MacaroonStore<T> (ConfidentialTokenStore<T> delegate, Key macKey) implements SecureTokenStore<T> {
+// Remembers macaroons whose HMAC chain has already been verified, keyed by the serialized token, along with
+// their caveats compiled into a Caveats check. A cache hit only re-evaluates the request-dependent caveats and
+// never recomputes the chain. Entries are dropped once the earliest time caveat has passed.
+public final class MacaroonStore<T> implements SecureTokenStore<T> {
+    private static final String TIME_PREFIX = "time < ";
+    private static final String METHOD_PREFIX = "method = ";
+    private static final String SINCE_PREFIX = "since > ";
+    // the formats TimestampCaveatVerifier tries, in the same order
+    private static final String[] TIME_FORMATS = { "yyyy-MM-dd'T'HH:mm:ss.SSSX", "yyyy-MM-dd'T'HH:mm:ssX",
+            "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd'T'HH", "yyyy-MM-dd" };
+
+    private final ConfidentialTokenStore<T> delegate;
+    private final Key macKey;
+    private final byte[] macKeyBytes;
+    private final Cache<String, Caveats> verified;
+
+    public MacaroonStore(ConfidentialTokenStore<T> delegate, Key macKey) {
+        this(delegate, macKey, 10_000, Duration.ofMinutes(10));
+    }
+
+    public MacaroonStore(ConfidentialTokenStore<T> delegate, Key macKey, long maximumSize, Duration maximumAge) {
+        this.delegate = delegate;
+        this.macKey = macKey;
+        this.macKeyBytes = macKey.getEncoded();
+        this.verified = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(maximumAge)
+                .recordStats().build();
+    }
 
     @Override
     public String create(Request request, T token) {
@@ -22,14 +57,29 @@ public record MacaroonStore<T> (ConfidentialTokenStore<T> delegate, Key macKey)
     }
 
     @Override
-    public Optional<T> read(Request request, String tokenId) {
-        var macaroon = MacaroonsBuilder.deserialize(tokenId);
+    public List<String> createAll(Request request, List<T> tokens) {
+        return delegate.createAll(request, tokens).stream()
+                .map(identifier -> MacaroonsBuilder.create("", macKey.getEncoded(), identifier).serialize())
+                .collect(Collectors.toList());
+    }
 
-        var verifier = new MacaroonsVerifier(macaroon).satisfyGeneral(new TimestampCaveatVerifier())
-                .satisfyExact("method = " + request.requestMethod()).satisfyGeneral(new SinceVerifier(request));
+    @Override
+    public Optional<T> read(Request request, String tokenId) {
+        var now = Instant.now();
+        var caveats = verified.getIfPresent(tokenId);
+        if (caveats == null) {
+            caveats = verifyChain(tokenId);
+            if (caveats == null || !now.isBefore(caveats.expiry())) {
+                return Optional.empty();
+            }
+            verified.put(tokenId, caveats);
+        } else if (!now.isBefore(caveats.expiry())) {
+            verified.invalidate(tokenId);
+            return Optional.empty();
+        }
 
-        if (verifier.isValid(macKey.getEncoded())) {
-            return delegate.read(request, macaroon.identifier);
+        if (caveats.satisfiedBy(request, now)) {
+            return delegate.read(request, caveats.identifier());
         }
         return Optional.empty();
     }
@@ -37,21 +87,86 @@ public record MacaroonStore<T> (ConfidentialTokenStore<T> delegate, Key macKey)
     @Override
     public void revoke(Request request, String tokenId) {
         var macaroon = MacaroonsBuilder.deserialize(tokenId);
+        verified.invalidate(tokenId);
         delegate.revoke(request, macaroon.identifier);
     }
 
-    private static record SinceVerifier(Request request) implements GeneralCaveatVerifier {
-        @Override
-        public boolean verifyCaveat(String caveat) {
-            if (caveat.startsWith("since > ")) {
-                var minSince = Instant.parse(caveat.substring(8));
-                var reqSince = Instant.now().minus(1, ChronoUnit.DAYS);
+    public CacheStats stats() {
+        return verified.stats();
+    }
+
+    // checks the signature with every first-party caveat accepted; third-party caveats still fail as before
+    private @Nullable Caveats verifyChain(String tokenId) {
+        var macaroon = MacaroonsBuilder.deserialize(tokenId);
+        if (!new MacaroonsVerifier(macaroon).satisfyGeneral(caveat -> true).isValid(macKeyBytes)) {
+            return null;
+        }
+
+        var expiry = Instant.MAX;
+        @Nullable String method = null;
+        @Nullable Instant minSince = null;
+        var satisfiable = true;
+        for (var packet : macaroon.caveatPackets) {
+            if (packet.getType() != CaveatPacket.Type.cid) {
+                continue;
+            }
+            var caveat = packet.getValueAsText();
+            if (caveat.startsWith(TIME_PREFIX)) {
+                var time = parseTime(caveat);
+                if (time == null) {
+                    satisfiable = false;
+                } else if (time.isBefore(expiry)) {
+                    expiry = time;
+                }
+            } else if (caveat.startsWith(METHOD_PREFIX)) {
+                var required = caveat.substring(METHOD_PREFIX.length());
+                if (method != null && !method.equals(required)) {
+                    satisfiable = false;
+                }
+                method = required;
+            } else if (caveat.startsWith(SINCE_PREFIX)) {
+                try {
+                    var since = Instant.parse(caveat.substring(SINCE_PREFIX.length()));
+                    if (minSince == null || since.isAfter(minSince)) {
+                        minSince = since;
+                    }
+                } catch (RuntimeException e) {
+                    satisfiable = false;
+                }
+            } else {
+                satisfiable = false;
+            }
+        }
+        return new Caveats(macaroon.identifier, expiry, method, minSince, satisfiable);
+    }
+
+    // parsed the way TimestampCaveatVerifier parses it, so that cached and uncached verification agree
+    private static @Nullable Instant parseTime(String caveat) {
+        for (var format : TIME_FORMATS) {
+            var date = new SimpleDateFormat(format).parse(caveat, new ParsePosition(TIME_PREFIX.length()));
+            if (date != null) {
+                return date.toInstant();
+            }
+        }
+        return null;
+    }
+
+    // expiry is the earliest time caveat, method and minSince the request-dependent ones
+    private static record Caveats(String identifier, Instant expiry, @Nullable String method,
+            @Nullable Instant minSince, boolean satisfiable) {
+        boolean satisfiedBy(Request request, Instant now) {
+            if (!satisfiable || (method != null && !method.equals(request.requestMethod()))) {
+                return false;
+            }
+            var minSince = this.minSince;
+            if (minSince != null) {
+                var reqSince = now.minus(1, ChronoUnit.DAYS);
                 if (request.queryParams("since") != null) {
                     reqSince = Instant.parse(request.queryParams("since"));
                 }
                 return reqSince.isAfter(minSince);
             }
-            return false;
+            return true;
         }
     }
 }
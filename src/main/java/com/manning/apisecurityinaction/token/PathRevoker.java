@@ -0,0 +1,8 @@
+package com.manning.apisecurityinaction.token;
+
+// Revokes every capability for a path and for the paths beneath it, returning how many were revoked, or 0 if
+// the store cannot count them
+@FunctionalInterface
+public interface PathRevoker {
+    int revokePath(String path);
+}
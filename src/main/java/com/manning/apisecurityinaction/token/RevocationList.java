@@ -0,0 +1,64 @@
+package com.manning.apisecurityinaction.token;
+
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class RevocationList {
+    private static final int PURGE_INTERVAL = 256;
+
+    private final ConcurrentHashMap<String, Instant> revokedIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PrefixRevocation> revokedPrefixes = new ConcurrentHashMap<>();
+    private final AtomicInteger revocationCount = new AtomicInteger();
+
+    public void revoke(String tokenId, Instant expiry) {
+        revokedIds.put(tokenId, expiry);
+        maybePurge();
+    }
+
+    // revokes every token for a path under the prefix that was issued before now; retainUntil must be no
+    // earlier than the expiry of the longest-lived such token
+    public void revokePrefix(String pathPrefix, Instant retainUntil) {
+        revokedPrefixes.put(pathPrefix, new PrefixRevocation(Instant.now(), retainUntil));
+        maybePurge();
+    }
+
+    public boolean isRevoked(String tokenId) {
+        return revokedIds.containsKey(tokenId);
+    }
+
+    public boolean isRevoked(String tokenId, String path, Instant issuedAt) {
+        if (isRevoked(tokenId)) {
+            return true;
+        }
+        if (revokedPrefixes.isEmpty()) {
+            return false;
+        }
+        for (int i = path.indexOf('/', 1); i != -1; i = path.indexOf('/', i + 1)) {
+            if (isRevokedPrefix(path.substring(0, i), issuedAt)) {
+                return true;
+            }
+        }
+        return isRevokedPrefix(path, issuedAt);
+    }
+
+    public int size() {
+        return revokedIds.size() + revokedPrefixes.size();
+    }
+
+    private boolean isRevokedPrefix(String prefix, Instant issuedAt) {
+        var revocation = revokedPrefixes.get(prefix);
+        return revocation != null && !issuedAt.isAfter(revocation.revokedAt());
+    }
+
+    private void maybePurge() {
+        if (revocationCount.incrementAndGet() % PURGE_INTERVAL == 0) {
+            var now = Instant.now();
+            revokedIds.values().removeIf(expiry -> expiry.isBefore(now));
+            revokedPrefixes.values().removeIf(revocation -> revocation.retainUntil().isBefore(now));
+        }
+    }
+
+    private static record PrefixRevocation(Instant revokedAt, Instant retainUntil) {
+    }
+}
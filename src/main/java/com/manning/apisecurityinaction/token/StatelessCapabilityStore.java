@@ -0,0 +1,75 @@
+package com.manning.apisecurityinaction.token;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import com.manning.apisecurityinaction.controller.Permission;
+
+import spark.Request;
+
+public final class StatelessCapabilityStore implements TokenStore<Capability> {
+    private final SecureRandom rng;
+    private final Duration lifetime;
+    private final RevocationList revocations;
+
+    public StatelessCapabilityStore(SecureRandom rng, Duration lifetime, RevocationList revocations) {
+        this.rng = rng;
+        this.lifetime = lifetime;
+        this.revocations = revocations;
+    }
+
+    @Override
+    public String create(Request request, Capability token) {
+        var issuedAt = Instant.now().getEpochSecond();
+        var expiry = issuedAt + lifetime.toSeconds();
+        var tokenExpiry = token.expiry();
+        if (tokenExpiry != null) {
+            expiry = Math.min(expiry, tokenExpiry.getEpochSecond());
+        }
+        var claims = String.join(":", randomId(), Integer.toString(Permission.toBits(token.perms())),
+                Long.toString(issuedAt), Long.toString(expiry), token.path());
+        return Base64Url.encode(claims.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Optional<Capability> read(Request request, String tokenId) {
+        return parse(tokenId).filter(claims -> claims.expiry().isAfter(Instant.now()))
+                .filter(claims -> !revocations.isRevoked(claims.id(), claims.path(), claims.issuedAt()))
+                .map(claims -> new Capability(claims.path(), Permission.fromBits(claims.perms()), claims.expiry()));
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        parse(tokenId).ifPresent(claims -> revocations.revoke(claims.id(), claims.expiry()));
+    }
+
+    public void revokeAll(String pathPrefix) {
+        revocations.revokePrefix(pathPrefix, Instant.now().plus(lifetime));
+    }
+
+    private static Optional<Claims> parse(String tokenId) {
+        try {
+            var parts = new String(Base64Url.decode(tokenId), StandardCharsets.UTF_8).split(":", 5);
+            if (parts.length != 5) {
+                return Optional.empty();
+            }
+            return Optional.of(new Claims(parts[0], Integer.parseInt(parts[1]),
+                    Instant.ofEpochSecond(Long.parseLong(parts[2])), Instant.ofEpochSecond(Long.parseLong(parts[3])),
+                    parts[4]));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    private String randomId() {
+        var bytes = new byte[16];
+        rng.nextBytes(bytes);
+        return Base64Url.encode(bytes);
+    }
+
+    private static record Claims(String id, int perms, Instant issuedAt, Instant expiry, String path) {
+    }
+}
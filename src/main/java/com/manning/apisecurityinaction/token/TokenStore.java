@@ -1,12 +1,17 @@
 package com.manning.apisecurityinaction.token;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 import spark.Request;
 
 public interface TokenStore<T> {
     String create(Request request, T token);
 
+    default List<String> createAll(Request request, List<T> tokens) {
+        return tokens.stream().map(token -> create(request, token)).collect(Collectors.toList());
+    }
+
     Optional<T> read(Request request, String tokenId);
 
     void revoke(Request request, String tokenId);
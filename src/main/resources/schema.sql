@@ -23,7 +23,7 @@ CREATE TABLE messages(
     msg_text VARCHAR(1024) NOT NULL
 );
 CREATE SEQUENCE msg_id_seq;
-CREATE INDEX msg_timestamp_idx ON messages(msg_time);    
+CREATE INDEX msg_space_time_idx ON messages(space_id, msg_time, msg_id);
 GRANT SELECT, INSERT, DELETE ON messages TO natter_api_user;
 
 CREATE TABLE audit_log(
@@ -34,23 +34,27 @@ CREATE TABLE audit_log(
     status INT NULL,
     audit_time TIMESTAMP NOT NULL
 );
-CREATE SEQUENCE audit_id_seq;
+CREATE SEQUENCE audit_id_seq INCREMENT BY 100;
+CREATE INDEX audit_time_idx ON audit_log(audit_time);
 GRANT SELECT, INSERT ON audit_log to natter_api_user;
 
 CREATE TABLE tokens(
-    token_id VARCHAR(100) PRIMARY KEY,
+    token_id BINARY(32) PRIMARY KEY,
     user_id VARCHAR(30) NOT NULL REFERENCES users(user_id),
     expiry TIMESTAMP NOT NULL,
     attributes VARCHAR(4096) NOT NULL     
 );
 GRANT SELECT, INSERT, DELETE ON tokens TO natter_api_user;
-CREATE INDEX expired_token_idx ON tokens(expiry);
+CREATE INDEX expired_token_idx ON tokens(expiry, token_id);
 
 CREATE TABLE caps(
-    cap_id VARCHAR(100) PRIMARY KEY,
+    cap_id BINARY(32) PRIMARY KEY,
     path VARCHAR(100) NOT NULL,
     r BOOLEAN NOT NULL,
     w BOOLEAN NOT NULL,
-    d BOOLEAN NOT NULL
+    d BOOLEAN NOT NULL,
+    expiry TIMESTAMP NULL
 );
 GRANT SELECT, INSERT, DELETE ON caps TO natter_api_user;
+CREATE INDEX expired_cap_idx ON caps(expiry, cap_id);
+CREATE INDEX cap_path_idx ON caps(path, cap_id);